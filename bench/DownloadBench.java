@@ -0,0 +1,104 @@
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Benchmark of whole downloads: the DownloadManager downloads a file from a RangeTestServer in the same process, as
+ * IdcDm does, and the benchmark reports the time of each run and verifies the downloaded file. At the end it reports
+ * the peak number of platform threads and the peak resident memory of the process (on Linux), e.g. to compare
+ * -Didc.threads=platform and virtual with many connections.
+ *
+ * The options of the downloads are the same system properties as for IdcDm, e.g. -Didc.http.engine=httpclient, which
+ * downloads from an Http2TestServer instead, so its ranges are streams of one HTTP/2 connection as with a real server.
+ * The file is downloaded to the working directory and deleted after each run.
+ *
+ * javac -d out src/*.java && javac -cp out -d out bench/*.java
+ * java -cp out DownloadBench [CONNECTIONS] [FILE-SIZE] [BYTES-PER-SECOND] [LATENCY-MS] [FAILURE-PERCENT] [RUNS]
+ */
+public class DownloadBench {
+
+    private static final String FILE_NAME = "download-bench.bin";
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        long fileSize = args.length > 1 ? Long.parseLong(args[1]) : 50_000_000;
+        long bytesPerSecond = args.length > 2 ? Long.parseLong(args[2]) : 0;
+        long latencyMillis = args.length > 3 ? Long.parseLong(args[3]) : 0;
+        int failurePercent = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+        int runs = args.length > 5 ? Integer.parseInt(args[5]) : 5;
+
+        DownloadOptions options = new DownloadOptions(System.getProperties());
+        RangeTestServer server = options.getHttpEngine() == HttpEngine.HTTP_CLIENT
+                ? new Http2TestServer(fileSize, bytesPerSecond, latencyMillis, failurePercent)
+                : new RangeTestServer(fileSize, bytesPerSecond, latencyMillis, failurePercent);
+        server.start(0);
+        String url = server.getUrl(FILE_NAME).toString();
+        File file = new File(FILE_NAME);
+
+        double[] seconds = new double[runs];
+        try {
+            for (int run = 0; run < runs; run++) {
+                file.delete();
+                DownloadManager downloadManager = new DownloadManager(connections, null, options);
+                long start = System.nanoTime();
+                boolean succeeded = downloadManager.download(url, "", false);
+                seconds[run] = (System.nanoTime() - start) / 1e9;
+                downloadManager.close();
+
+                if (!succeeded || !verify(file, fileSize)) {
+                    System.out.printf("run %d: download failed%n", run + 1);
+                    return;
+                }
+                System.out.printf("run %d: %.2f s, %.1f MB/s%n", run + 1, seconds[run], fileSize / seconds[run] / 1e6);
+            }
+        } finally {
+            server.stop();
+            file.delete();
+        }
+
+        Arrays.sort(seconds);
+        double median = seconds[runs / 2];
+        System.out.printf("connections: %d size: %d limit: %d B/s latency: %d ms failures: %d%%%n",
+                connections, fileSize, bytesPerSecond, latencyMillis, failurePercent);
+        System.out.printf("median: %.2f s, %.1f MB/s (min %.2f s, max %.2f s)%n",
+                median, fileSize / median / 1e6, seconds[0], seconds[runs - 1]);
+        System.out.printf("peak platform threads: %d, peak resident memory: %s%n",
+                ManagementFactory.getThreadMXBean().getPeakThreadCount(), peakResidentMemory());
+        System.out.println(server);
+    }
+
+    /**
+     * @return the high water mark of the resident memory of the process, or "unknown" if it is not on Linux
+     */
+    private static String peakResidentMemory() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmHWM:")) {
+                    return line.substring("VmHWM:".length()).trim();
+                }
+            }
+        } catch (IOException e) {
+            // not on Linux
+        }
+        return "unknown";
+    }
+
+    /**
+     * Compares the downloaded file with the content the server generates
+     */
+    private static boolean verify(File file, long fileSize) throws IOException {
+        if (file.length() != fileSize) return false;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024)) {
+            for (long position = 0; position < fileSize; position++) {
+                if ((byte) in.read() != RangeTestServer.byteAt(position)) return false;
+            }
+        }
+        return true;
+    }
+}
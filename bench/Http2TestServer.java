@@ -0,0 +1,789 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local HTTP/2 server with Range support, which serves the same files as the RangeTestServer, so that the ranges of
+ * the httpclient engine can be benchmarked as streams of one connection without a network.
+ *
+ * It speaks cleartext HTTP/2 (h2c): the HttpClient asks for it on http:// URLs with "Upgrade: h2c" on its first
+ * HTTP/1.1 request, and the response to that request is the first stream of the connection. HTTP/2 with prior knowledge
+ * works as well, and requests on connections which are not upgraded get HTTP/1.1 responses, so the socket engine can
+ * download from the server too.
+ *
+ * Each stream is sent at most with the configured bandwidth and within the flow-control windows the client grants, so a
+ * client which does not keep up holds the streams back. A failing range response is reset (RST_STREAM) after half of
+ * its body, which breaks off the stream but not the connection. Only what a download needs is implemented: no server
+ * push and no priorities, and the response headers are sent without Huffman coding or indexing.
+ *
+ * javac -d out src/*.java && javac -cp out -d out bench/*.java
+ * java -cp out Http2TestServer [PORT] [FILE-SIZE] [BYTES-PER-SECOND] [LATENCY-MS] [FAILURE-PERCENT]
+ */
+public class Http2TestServer extends RangeTestServer {
+
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    /* frame types */
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    /* frame flags */
+    private static final int END_STREAM = 0x1;
+    private static final int ACK = 0x1;
+    private static final int END_HEADERS = 0x4;
+    private static final int PADDED = 0x8;
+    private static final int PRIORITY = 0x20;
+
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    private static final int INTERNAL_ERROR = 0x2;
+
+    private static final int DEFAULT_WINDOW = 65535;
+
+    private static final int DEFAULT_FRAME_SIZE = 16384;
+
+    private final AtomicLong streams = new AtomicLong(); // responses sent as HTTP/2 streams
+
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+
+    private ServerSocket serverSocket;
+
+    private ExecutorService executor; // runs the connections and their streams
+
+    /**
+     * @param fileSize size of every file
+     * @param bytesPerSecond bandwidth of each stream, 0 for no limit
+     * @param latencyMillis time until the headers of each response are sent
+     * @param failurePercent percentage of range responses which are reset in the middle
+     */
+    Http2TestServer(long fileSize, long bytesPerSecond, long latencyMillis, int failurePercent) {
+        super(fileSize, bytesPerSecond, latencyMillis, failurePercent);
+    }
+
+    @Override
+    void start(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+        executor = Executors.newCachedThreadPool();
+        executor.execute(this::accept);
+    }
+
+    @Override
+    void stop() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // closed anyway
+        }
+        for (Socket socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // closed anyway
+            }
+        }
+        executor.shutdownNow();
+    }
+
+    @Override
+    URL getUrl(String name) throws IOException {
+        return new URL("http", serverSocket.getInetAddress().getHostAddress(), serverSocket.getLocalPort(), "/" + name);
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                final Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                sockets.add(socket);
+                executor.execute(() -> {
+                    try (socket) {
+                        new Connection(socket).run();
+                    } catch (IOException | InterruptedException e) {
+                        // the client closed the connection, or the server is stopped
+                    } finally {
+                        sockets.remove(socket);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            // the server is stopped
+        }
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + " http/2 streams: " + streams.get();
+    }
+
+    /**
+     * A connection of a client, HTTP/1.1 until it is upgraded, its frames are read by the thread of the connection and
+     * each stream is sent by a thread of its own
+     */
+    private final class Connection {
+
+        private final InputStream in;
+
+        private final OutputStream out; // frames are written under its lock
+
+        private final HpackDecoder decoder = new HpackDecoder();
+
+        /* the streams which are sent, and the flow control, guarded by the connection */
+        private final Map<Integer, Stream> open = new HashMap<>();
+
+        private long connectionWindow = DEFAULT_WINDOW;
+
+        private int initialWindow = DEFAULT_WINDOW;
+
+        private int maxFrameSize = DEFAULT_FRAME_SIZE;
+
+        private boolean closed;
+
+        Connection(Socket socket) throws IOException {
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 2 * BUFFER_SIZE);
+        }
+
+        void run() throws IOException, InterruptedException {
+            while (true) {
+                String requestLine = readLine();
+                if (requestLine == null) return;
+                if (requestLine.isEmpty()) continue;
+
+                if (requestLine.equals("PRI * HTTP/2.0")) { // prior knowledge, the rest of the preface follows
+                    if (!readLine().isEmpty() || !readLine().equals("SM") || !readLine().isEmpty()) {
+                        throw new ProtocolException("Invalid connection preface");
+                    }
+                    http2(null, null);
+                    return;
+                }
+
+                String method = requestLine.split(" ", 2)[0];
+                Map<String, String> headers = new HashMap<>();
+                String line;
+                while (!(line = readLine()).isEmpty()) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+                    }
+                }
+                requests.incrementAndGet();
+
+                if ("h2c".equalsIgnoreCase(headers.get("upgrade"))) {
+                    out.write("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n"
+                            .getBytes(StandardCharsets.ISO_8859_1));
+                    http2(method, headers.get("range"));
+                    return;
+                }
+                if (!http1(method, headers.get("range")) || "close".equalsIgnoreCase(headers.get("connection"))) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Sends an HTTP/1.1 response
+         *
+         * @return false if the response was broken off, the connection is closed then
+         */
+        private boolean http1(String method, String rangeHeader) throws IOException, InterruptedException {
+            long[] range = range(rangeHeader);
+            if (range == null) {
+                writeAscii("HTTP/1.1 416 Range Not Satisfiable\r\nContent-Range: bytes */" + fileSize
+                        + "\r\nContent-Length: 0\r\n\r\n");
+                out.flush();
+                return true;
+            }
+            boolean partial = rangeHeader != null && rangeHeader.startsWith("bytes=");
+            long length = range[1] - range[0] + 1;
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+            writeAscii((partial ? "HTTP/1.1 206 Partial Content\r\nContent-Range: bytes " + range[0] + "-" + range[1]
+                    + "/" + fileSize + "\r\n" : "HTTP/1.1 200 OK\r\n") + "Accept-Ranges: bytes\r\nContent-Length: "
+                    + length + "\r\n\r\n");
+            if (method.equals("HEAD")) {
+                out.flush();
+                return true;
+            }
+
+            boolean fail = partial && fails(); // breaks off after half of the body
+            long send = fail ? length / 2 : length;
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long started = System.nanoTime();
+            long sent = 0;
+            while (sent < send) {
+                int size = (int) Math.min(buffer.length, send - sent);
+                fill(buffer, range[0] + sent, size);
+                out.write(buffer, 0, size);
+                out.flush();
+                sent += size;
+                bytesSent.addAndGet(size);
+                pace(started, sent);
+            }
+            out.flush();
+            return !fail;
+        }
+
+        /**
+         * Speaks HTTP/2 until the client closes the connection
+         *
+         * @param method the method of the request which was upgraded, its response is stream 1, or null
+         */
+        private void http2(String method, String rangeHeader) throws IOException {
+            try {
+                writeFrame(SETTINGS, 0, 0, new byte[0], 0);
+                if (method != null) {
+                    respond(1, method, rangeHeader);
+                    byte[] preface = new byte[PREFACE.length];
+                    readFully(preface);
+                    if (!Arrays.equals(preface, PREFACE)) {
+                        throw new ProtocolException("Invalid connection preface");
+                    }
+                }
+                readFrames();
+            } finally {
+                synchronized (this) {
+                    closed = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        private void readFrames() throws IOException {
+            byte[] header = new byte[9];
+            ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+            int headerStream = 0; // the stream whose header block continues
+            while (true) {
+                readFully(header);
+                int length = (header[0] & 0xff) << 16 | (header[1] & 0xff) << 8 | header[2] & 0xff;
+                int type = header[3] & 0xff;
+                int flags = header[4] & 0xff;
+                int stream = readInt(header, 5) & 0x7fffffff;
+                byte[] payload = new byte[length];
+                readFully(payload);
+
+                switch (type) {
+                    case HEADERS:
+                        int offset = 0;
+                        int end = length;
+                        if ((flags & PADDED) != 0) {
+                            end -= payload[0] & 0xff;
+                            offset = 1;
+                        }
+                        if ((flags & PRIORITY) != 0) {
+                            offset += 5;
+                        }
+                        headerBlock.reset();
+                        headerBlock.write(payload, offset, end - offset);
+                        headerStream = stream;
+                        if ((flags & END_HEADERS) != 0) {
+                            request(headerStream, headerBlock.toByteArray());
+                        }
+                        break;
+                    case CONTINUATION:
+                        headerBlock.write(payload, 0, length);
+                        if ((flags & END_HEADERS) != 0) {
+                            request(headerStream, headerBlock.toByteArray());
+                        }
+                        break;
+                    case SETTINGS:
+                        if ((flags & ACK) == 0) {
+                            settings(payload);
+                            writeFrame(SETTINGS, ACK, 0, new byte[0], 0);
+                        }
+                        break;
+                    case WINDOW_UPDATE:
+                        windowUpdate(stream, readInt(payload, 0) & 0x7fffffff);
+                        break;
+                    case RST_STREAM:
+                        reset(stream);
+                        break;
+                    case PING:
+                        if ((flags & ACK) == 0) {
+                            writeFrame(PING, ACK, 0, payload, length);
+                        }
+                        break;
+                    case GOAWAY:
+                        return;
+                    default:
+                        break; // the bodies of requests, priorities and unknown frames
+                }
+            }
+        }
+
+        private void request(int stream, byte[] headerBlock) throws IOException {
+            Map<String, String> headers = decoder.decode(headerBlock);
+            requests.incrementAndGet();
+            respond(stream, headers.getOrDefault(":method", "GET"), headers.get("range"));
+        }
+
+        /**
+         * Sends the response of a stream on a thread of its own
+         */
+        private void respond(int id, String method, String rangeHeader) {
+            final Stream stream = new Stream(id);
+            synchronized (this) {
+                stream.window = initialWindow;
+                open.put(id, stream);
+            }
+            streams.incrementAndGet();
+            executor.execute(() -> {
+                try {
+                    send(stream, method, rangeHeader);
+                } catch (IOException | InterruptedException e) {
+                    // the connection is closed
+                } finally {
+                    synchronized (this) {
+                        open.remove(id);
+                    }
+                }
+            });
+        }
+
+        private void send(Stream stream, String method, String rangeHeader) throws IOException, InterruptedException {
+            long[] range = range(rangeHeader);
+            if (range == null) {
+                writeHeaders(stream.id, true, ":status", "416", "content-range", "bytes */" + fileSize);
+                return;
+            }
+            boolean partial = rangeHeader != null && rangeHeader.startsWith("bytes=");
+            long length = range[1] - range[0] + 1;
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+            boolean head = method.equals("HEAD");
+            if (partial) {
+                writeHeaders(stream.id, head, ":status", "206", "content-length", Long.toString(length),
+                        "content-range", "bytes " + range[0] + "-" + range[1] + "/" + fileSize,
+                        "accept-ranges", "bytes");
+            } else {
+                writeHeaders(stream.id, head, ":status", "200", "content-length", Long.toString(length),
+                        "accept-ranges", "bytes");
+            }
+            if (head) return;
+
+            boolean fail = partial && fails(); // reset after half of the body
+            long send = fail ? length / 2 : length;
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long started = System.nanoTime();
+            long sent = 0;
+            while (sent < send) {
+                int size = acquire(stream, (int) Math.min(buffer.length, send - sent));
+                if (size == -1) return; // reset by the client
+                fill(buffer, range[0] + sent, size);
+                sent += size;
+                writeFrame(DATA, sent == length ? END_STREAM : 0, stream.id, buffer, size);
+                bytesSent.addAndGet(size);
+                pace(started, sent);
+            }
+            if (fail) {
+                byte[] errorCode = new byte[4];
+                writeInt(errorCode, 0, INTERNAL_ERROR);
+                writeFrame(RST_STREAM, 0, stream.id, errorCode, errorCode.length);
+            }
+        }
+
+        /**
+         * Waits until the windows of the connection and the stream allow to send some bytes, and takes them
+         *
+         * @return the bytes which may be sent, at most size, or -1 if the stream was reset or the connection closed
+         */
+        private synchronized int acquire(Stream stream, int size) throws InterruptedException {
+            while (!closed && !stream.reset && (connectionWindow <= 0 || stream.window <= 0)) {
+                wait();
+            }
+            if (closed || stream.reset) return -1;
+
+            int granted = (int) Math.min(Math.min(size, maxFrameSize), Math.min(connectionWindow, stream.window));
+            connectionWindow -= granted;
+            stream.window -= granted;
+            return granted;
+        }
+
+        private synchronized void settings(byte[] payload) {
+            for (int i = 0; i + 6 <= payload.length; i += 6) {
+                int id = (payload[i] & 0xff) << 8 | payload[i + 1] & 0xff;
+                int value = readInt(payload, i + 2);
+                if (id == SETTINGS_INITIAL_WINDOW_SIZE) {
+                    for (Stream stream : open.values()) { // the windows of the open streams change by the difference
+                        stream.window += value - initialWindow;
+                    }
+                    initialWindow = value;
+                } else if (id == SETTINGS_MAX_FRAME_SIZE) {
+                    maxFrameSize = value;
+                }
+            }
+            notifyAll();
+        }
+
+        private synchronized void windowUpdate(int id, int increment) {
+            if (id == 0) {
+                connectionWindow += increment;
+            } else if (open.containsKey(id)) {
+                open.get(id).window += increment;
+            }
+            notifyAll();
+        }
+
+        private synchronized void reset(int id) {
+            if (open.containsKey(id)) {
+                open.get(id).reset = true;
+            }
+            notifyAll();
+        }
+
+        /**
+         * Sends the headers of a response as literals without indexing and without Huffman coding
+         *
+         * @param fields names and values in turn
+         */
+        private void writeHeaders(int stream, boolean endStream, String... fields) throws IOException {
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            for (int i = 0; i < fields.length; i += 2) {
+                block.write(0x00); // literal header field without indexing, new name
+                writeString(block, fields[i]);
+                writeString(block, fields[i + 1]);
+            }
+            writeFrame(HEADERS, END_HEADERS | (endStream ? END_STREAM : 0), stream, block.toByteArray(), block.size());
+        }
+
+        private void writeFrame(int type, int flags, int stream, byte[] payload, int length) throws IOException {
+            synchronized (out) {
+                out.write(length >>> 16);
+                out.write(length >>> 8);
+                out.write(length);
+                out.write(type);
+                out.write(flags);
+                out.write(stream >>> 24);
+                out.write(stream >>> 16);
+                out.write(stream >>> 8);
+                out.write(stream);
+                out.write(payload, 0, length);
+                out.flush();
+            }
+        }
+
+        private void writeAscii(String text) throws IOException {
+            out.write(text.getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        /**
+         * @return the line without its line break, or null at the end of the stream before the line
+         */
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b == -1) {
+                    if (line.length() == 0) return null;
+                    throw new EOFException("Connection closed in the middle of a line");
+                }
+                line.append((char) b);
+            }
+            int length = line.length();
+            if (length > 0 && line.charAt(length - 1) == '\r') {
+                line.setLength(length - 1);
+            }
+            return line.toString();
+        }
+
+        private void readFully(byte[] buffer) throws IOException {
+            int read = 0;
+            while (read < buffer.length) {
+                int n = in.read(buffer, read, buffer.length - read);
+                if (n == -1) throw new EOFException("Connection closed by the client");
+                read += n;
+            }
+        }
+    }
+
+    /**
+     * A response which is sent, its window is guarded by its connection
+     */
+    private static final class Stream {
+
+        final int id;
+
+        long window; // bytes the client accepts on the stream, negative after its initial window shrank
+
+        boolean reset;
+
+        Stream(int id) {
+            this.id = id;
+        }
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xff) << 24 | (buffer[offset + 1] & 0xff) << 16 | (buffer[offset + 2] & 0xff) << 8
+                | buffer[offset + 3] & 0xff;
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Writes an HPACK string literal without Huffman coding
+     */
+    private static void writeString(ByteArrayOutputStream block, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+        int length = bytes.length;
+        if (length < 0x7f) {
+            block.write(length);
+        } else { // an integer with a 7 bit prefix
+            block.write(0x7f);
+            length -= 0x7f;
+            while (length >= 0x80) {
+                block.write(length & 0x7f | 0x80);
+                length >>>= 7;
+            }
+            block.write(length);
+        }
+        block.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Decodes the header blocks of the requests of a connection (HPACK, RFC 7541), including the dynamic table the
+     * client fills and the Huffman coding of its strings
+     */
+    private static final class HpackDecoder {
+
+        private static final String[][] STATIC_TABLE = {
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"}, {":path", "/index.html"},
+            {":scheme", "http"}, {":scheme", "https"}, {":status", "200"}, {":status", "204"}, {":status", "206"},
+            {":status", "304"}, {":status", "400"}, {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""},
+            {"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""}, {"authorization", ""},
+            {"cache-control", ""}, {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""},
+            {"content-length", ""}, {"content-location", ""}, {"content-range", ""}, {"content-type", ""},
+            {"cookie", ""}, {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""},
+            {"if-match", ""}, {"if-modified-since", ""}, {"if-none-match", ""}, {"if-range", ""},
+            {"if-unmodified-since", ""}, {"last-modified", ""}, {"link", ""}, {"location", ""}, {"max-forwards", ""},
+            {"proxy-authenticate", ""}, {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""},
+            {"retry-after", ""}, {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+            {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""}, {"www-authenticate", ""}
+        };
+
+        /* the Huffman code of each byte and of the end of the string (256), and their lengths in bits */
+        private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7, 0xfffffe8, 0xffffea,
+            0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec, 0xfffffed, 0xfffffee, 0xfffffef,
+            0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3, 0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7,
+            0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb, 0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa, 0x3fa,
+            0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18, 0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d, 0x1e, 0x1f, 0x5c,
+            0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc, 0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62, 0x63, 0x64, 0x65, 0x66,
+            0x67, 0x68, 0x69, 0x6a, 0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72, 0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0,
+            0x1ffc, 0x3ffc, 0x22, 0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26, 0x27, 0x6, 0x74, 0x75, 0x28, 0x29,
+            0x2a, 0x7, 0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78, 0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd,
+            0xffffffc, 0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9, 0x3fffd6, 0x7fffda,
+            0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf, 0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0,
+            0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3, 0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6,
+            0x7fffe7, 0xffffef, 0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde, 0x7fffea,
+            0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec, 0x1fffe0, 0x1fffe1, 0x3fffe0,
+            0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef, 0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5,
+            0x3fffe6, 0x7ffff1, 0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed, 0x7fff2, 0x1fffe3,
+            0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2, 0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9,
+            0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5, 0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7,
+            0x1fffe8, 0x7ffff3, 0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea, 0x7ffffeb,
+            0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee, 0x3fffffff
+        };
+
+        private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28,
+            28, 28, 28, 28, 28, 6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7,
+            8, 15, 6, 12, 10, 13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19,
+            13, 14, 6, 15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13,
+            28, 20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21,
+            22, 23, 22, 23, 23, 24, 22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22, 21, 23,
+            22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23, 26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27, 20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25,
+            25, 24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26, 30
+        };
+
+        /* the Huffman codes as a binary tree: the children of each node for a 0 and a 1 bit, a leaf is -1 - symbol */
+        private static final int[] ZERO = new int[512];
+        private static final int[] ONE = new int[512];
+
+        static {
+            int nodes = 1; // the root is node 0
+            for (int symbol = 0; symbol < HUFFMAN_CODES.length; symbol++) {
+                int node = 0;
+                for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+                    int[] children = (HUFFMAN_CODES[symbol] >>> bit & 1) == 0 ? ZERO : ONE;
+                    if (bit == 0) {
+                        children[node] = -1 - symbol;
+                    } else {
+                        if (children[node] == 0) {
+                            children[node] = nodes++;
+                        }
+                        node = children[node];
+                    }
+                }
+            }
+        }
+
+        private static final int MAX_TABLE_SIZE = 4096; // the default SETTINGS_HEADER_TABLE_SIZE
+
+        /* the dynamic table, newest entry first */
+        private final List<String[]> table = new ArrayList<>();
+
+        private int tableSize;
+
+        private int maxTableSize = MAX_TABLE_SIZE;
+
+        private byte[] block;
+
+        private int position;
+
+        Map<String, String> decode(byte[] block) throws IOException {
+            this.block = block;
+            this.position = 0;
+            Map<String, String> headers = new HashMap<>();
+            try {
+                while (position < block.length) {
+                    int b = block[position] & 0xff;
+                    if ((b & 0x80) != 0) { // indexed field
+                        String[] field = entry(readInteger(7));
+                        headers.put(field[0], field[1]);
+                    } else if ((b & 0x40) != 0) { // literal with incremental indexing
+                        int index = readInteger(6);
+                        String name = index == 0 ? readString() : entry(index)[0];
+                        String value = readString();
+                        add(name, value);
+                        headers.put(name, value);
+                    } else if ((b & 0x20) != 0) { // dynamic table size update
+                        int size = readInteger(5);
+                        if (size > MAX_TABLE_SIZE) throw new ProtocolException("Invalid table size " + size);
+                        maxTableSize = size;
+                        evict(0);
+                    } else { // literal without indexing or never indexed
+                        int index = readInteger(4);
+                        String name = index == 0 ? readString() : entry(index)[0];
+                        headers.put(name, readString());
+                    }
+                }
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new ProtocolException("Truncated header block");
+            }
+            return headers;
+        }
+
+        private String[] entry(int index) throws ProtocolException {
+            if (index >= 1 && index <= STATIC_TABLE.length) return STATIC_TABLE[index - 1];
+            if (index > STATIC_TABLE.length && index <= STATIC_TABLE.length + table.size()) {
+                return table.get(index - STATIC_TABLE.length - 1);
+            }
+            throw new ProtocolException("Invalid table index " + index);
+        }
+
+        private void add(String name, String value) {
+            int size = 32 + name.length() + value.length();
+            evict(size);
+            if (size <= maxTableSize) {
+                table.add(0, new String[] {name, value});
+                tableSize += size;
+            }
+        }
+
+        /**
+         * Evicts the oldest entries until an entry of the given size fits
+         */
+        private void evict(int size) {
+            while (!table.isEmpty() && tableSize + size > maxTableSize) {
+                String[] oldest = table.remove(table.size() - 1);
+                tableSize -= 32 + oldest[0].length() + oldest[1].length();
+            }
+        }
+
+        private int readInteger(int prefix) {
+            int max = (1 << prefix) - 1;
+            int value = block[position++] & max;
+            if (value < max) return value;
+
+            int shift = 0;
+            int b;
+            do {
+                b = block[position++] & 0xff;
+                value += (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        private String readString() throws ProtocolException {
+            boolean huffman = (block[position] & 0x80) != 0;
+            int length = readInteger(7);
+            if (position + length > block.length) throw new ProtocolException("Truncated string");
+            String value = huffman ? huffman(position, length)
+                    : new String(block, position, length, StandardCharsets.ISO_8859_1);
+            position += length;
+            return value;
+        }
+
+        private String huffman(int offset, int length) throws ProtocolException {
+            StringBuilder value = new StringBuilder();
+            int node = 0;
+            int depth = 0; // bits since the last symbol
+            for (int i = offset; i < offset + length; i++) {
+                for (int bit = 7; bit >= 0; bit--) {
+                    int child = (block[i] >>> bit & 1) == 0 ? ZERO[node] : ONE[node];
+                    if (child < 0) {
+                        if (child == -1 - 256) throw new ProtocolException("End of string in a Huffman string");
+                        value.append((char) (-1 - child));
+                        node = 0;
+                        depth = 0;
+                    } else {
+                        node = child;
+                        depth++;
+                    }
+                }
+            }
+            if (depth > 7) throw new ProtocolException("Invalid padding of a Huffman string");
+            return value.toString();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        long fileSize = args.length > 1 ? Long.parseLong(args[1]) : 50_000_000;
+        long bytesPerSecond = args.length > 2 ? Long.parseLong(args[2]) : 0;
+        long latencyMillis = args.length > 3 ? Long.parseLong(args[3]) : 0;
+        int failurePercent = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+
+        Http2TestServer server = new Http2TestServer(fileSize, bytesPerSecond, latencyMillis, failurePercent);
+        server.start(port);
+        System.out.println("serving files of " + fileSize + " bytes over HTTP/2 at " + server.getUrl("FILE"));
+    }
+}
@@ -0,0 +1,221 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local HTTP/1.1 server with Range support, to benchmark whole downloads reproducibly without a network.
+ *
+ * Every path is a file of the same size whose content is generated from the position of each byte (see byteAt), so
+ * a download can be verified without a copy of the file. Each response is sent at most with the configured bandwidth,
+ * which is the bandwidth of each connection since the getters send their requests one after the other on their
+ * connection. Each response waits for the configured latency before its headers are sent, and the configured percentage
+ * of the range responses breaks off the connection in the middle of the body. The failures are drawn from a random
+ * generator with a fixed seed, so the same requests fail on every run of a benchmark.
+ *
+ * Http2TestServer serves the same files over HTTP/2.
+ *
+ * javac -d out src/*.java && javac -cp out -d out bench/RangeTestServer.java
+ * java -cp out RangeTestServer [PORT] [FILE-SIZE] [BYTES-PER-SECOND] [LATENCY-MS] [FAILURE-PERCENT]
+ */
+public class RangeTestServer {
+
+    static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final long SEED = 42;
+
+    final long fileSize;
+
+    final long bytesPerSecond; // of each response, 0 for no limit
+
+    final long latencyMillis;
+
+    private final int failurePercent;
+
+    private final Random failures = new Random(SEED);
+
+    final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    final AtomicLong bytesSent = new AtomicLong();
+
+    private HttpServer server;
+
+    private ExecutorService executor;
+
+    /**
+     * @param fileSize size of every file
+     * @param bytesPerSecond bandwidth of each connection, 0 for no limit
+     * @param latencyMillis time until the headers of each response are sent
+     * @param failurePercent percentage of range responses which break off in the middle
+     */
+    RangeTestServer(long fileSize, long bytesPerSecond, long latencyMillis, int failurePercent) {
+        this.fileSize = fileSize;
+        this.bytesPerSecond = bytesPerSecond;
+        this.latencyMillis = latencyMillis;
+        this.failurePercent = failurePercent;
+    }
+
+    /**
+     * Starts to listen on the loopback interface
+     *
+     * @param port the port, or 0 for any free port
+     */
+    void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the URL of a file with the given name
+     */
+    URL getUrl(String name) throws IOException {
+        return new URL("http", server.getAddress().getHostString(), server.getAddress().getPort(), "/" + name);
+    }
+
+    /**
+     * The content of every file
+     */
+    static byte byteAt(long position) {
+        return (byte) (position * 31 ^ position >>> 13);
+    }
+
+    /**
+     * @param range the Range header of a request, or null
+     * @return the first and the last byte of the response, or null if the range is not satisfiable
+     */
+    long[] range(String range) {
+        long start = 0;
+        long end = fileSize - 1;
+        if (range != null && range.startsWith("bytes=")) {
+            try {
+                String[] bounds = range.substring("bytes=".length()).split("-", 2);
+                start = Long.parseLong(bounds[0].trim());
+                if (!bounds[1].isBlank()) {
+                    end = Math.min(end, Long.parseLong(bounds[1].trim()));
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                return null;
+            }
+        }
+        return start > end ? null : new long[] {start, end};
+    }
+
+    /**
+     * Draws whether a range response breaks off in the middle
+     */
+    boolean fails() {
+        if (failurePercent == 0 || failures.nextInt(100) >= failurePercent) return false;
+        failed.incrementAndGet();
+        return true;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        try (exchange) {
+            String rangeHeader = exchange.getRequestHeaders().getFirst("Range");
+            long[] range = range(rangeHeader);
+            if (range == null) {
+                exchange.getResponseHeaders().add("Content-Range", "bytes */" + fileSize);
+                exchange.sendResponseHeaders(416, -1);
+                return;
+            }
+            long start = range[0];
+            long end = range[1];
+            int status = 200;
+            if (rangeHeader != null && rangeHeader.startsWith("bytes=")) {
+                status = 206;
+                exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + fileSize);
+            }
+
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+            long length = end - start + 1;
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.getResponseHeaders().add("Content-Length", Long.toString(length));
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(status, length);
+
+            // a failing response stops after half of its body, closing the exchange then closes the connection
+            long send = status == 206 && fails() ? length / 2 : length;
+            send(exchange.getResponseBody(), start, send);
+        } catch (InterruptedException e) {
+            // the server is stopped
+        } catch (IOException e) {
+            // the client closed the connection, or the response was broken off on purpose
+        }
+    }
+
+    private void send(OutputStream out, long position, long length) throws IOException, InterruptedException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long started = System.nanoTime();
+        long sent = 0;
+        while (sent < length) {
+            int size = (int) Math.min(buffer.length, length - sent);
+            fill(buffer, position + sent, size);
+            out.write(buffer, 0, size);
+            sent += size;
+            bytesSent.addAndGet(size);
+            pace(started, sent);
+        }
+    }
+
+    /**
+     * Fills the buffer with the content of the file from a position
+     */
+    static void fill(byte[] buffer, long position, int size) {
+        for (int i = 0; i < size; i++) {
+            buffer[i] = byteAt(position + i);
+        }
+    }
+
+    /**
+     * Waits until the bytes of a response sent so far are due at the bandwidth
+     */
+    void pace(long started, long sent) throws InterruptedException {
+        if (bytesPerSecond == 0) return;
+
+        long wait = started + sent * 1_000_000_000L / bytesPerSecond - System.nanoTime();
+        if (wait > 0) {
+            Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " requests: " + requests.get() + " failed: " + failed.get()
+                + " bytes sent: " + bytesSent.get();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        long fileSize = args.length > 1 ? Long.parseLong(args[1]) : 50_000_000;
+        long bytesPerSecond = args.length > 2 ? Long.parseLong(args[2]) : 0;
+        long latencyMillis = args.length > 3 ? Long.parseLong(args[3]) : 0;
+        int failurePercent = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+
+        RangeTestServer server = new RangeTestServer(fileSize, bytesPerSecond, latencyMillis, failurePercent);
+        server.start(port);
+        System.out.println("serving files of " + fileSize + " bytes at " + server.getUrl("FILE"));
+    }
+}
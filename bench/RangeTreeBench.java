@@ -0,0 +1,137 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Microbenchmark of the RangeTree with many missing ranges, against the ArrayList of ranges the metadata kept before:
+ * the file is missing RANGES ranges of 16kb, and workers claim them in turn and mark them as downloaded chunk by
+ * chunk, as the HTTPRangeGetters and the FileWriter do. One thread runs the workers without locking, so the benchmark
+ * measures the data structures alone.
+ *
+ * The list scans its ranges for every claim and every chunk, so it takes minutes for a million ranges; it only runs
+ * for at most LIST-RANGES ranges.
+ *
+ * javac -d out src/*.java && javac -cp out -d out bench/RangeTreeBench.java
+ * java -cp out RangeTreeBench [RANGES] [WORKERS] [RUNS] [LIST-RANGES]
+ */
+public class RangeTreeBench {
+
+    private static final long RANGE_SIZE = 16 * 1024;
+
+    /**
+     * A range of the list, claimed by setting inUse, as the metadata did it
+     */
+    private static final class ListRange {
+
+        long start;
+
+        final long end;
+
+        boolean inUse;
+
+        ListRange(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    public static void main(String[] args) {
+        int ranges = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        int listRanges = args.length > 3 ? Integer.parseInt(args[3]) : 300_000;
+
+        for (int run = 0; run < runs; run++) {
+            long start = System.nanoTime();
+            long chunks = tree(ranges, workers);
+            double treeMillis = (System.nanoTime() - start) / 1e6;
+
+            String list = "skipped";
+            if (ranges <= listRanges) {
+                start = System.nanoTime();
+                list(ranges, workers);
+                list = String.format("%.0f ms", (System.nanoTime() - start) / 1e6);
+            }
+            System.out.printf("run %d: ranges: %d chunks: %d tree %.0f ms (%.0f chunks/ms), list %s%n",
+                    run + 1, ranges, chunks, treeMillis, chunks / treeMillis, list);
+        }
+    }
+
+    private static long tree(int ranges, int workers) {
+        RangeTree tree = new RangeTree();
+        for (long i = 0; i < ranges; i++) {
+            tree.add(i * RANGE_SIZE, (i + 1) * RANGE_SIZE - 1);
+        }
+
+        Range[] claimed = new Range[workers];
+        long[] positions = new long[workers];
+        long chunks = 0;
+        boolean left = true;
+        while (left) {
+            left = false;
+            for (int w = 0; w < workers; w++) {
+                if (claimed[w] == null) {
+                    claimed[w] = tree.claim(RANGE_SIZE, Long.MAX_VALUE);
+                    if (claimed[w] == null) continue;
+                    positions[w] = claimed[w].getStart();
+                }
+                left = true;
+                tree.remove(positions[w], positions[w] + HTTPRangeGetter.CHUNK_SIZE - 1);
+                positions[w] += HTTPRangeGetter.CHUNK_SIZE;
+                chunks++;
+                if (positions[w] > claimed[w].getEnd()) {
+                    claimed[w] = null;
+                }
+            }
+        }
+        if (!tree.isEmpty()) {
+            throw new IllegalStateException("The tree still has " + tree.getRemaining() + " bytes");
+        }
+        return chunks;
+    }
+
+    private static void list(int ranges, int workers) {
+        List<ListRange> list = new ArrayList<>();
+        for (long i = 0; i < ranges; i++) {
+            list.add(new ListRange(i * RANGE_SIZE, (i + 1) * RANGE_SIZE - 1));
+        }
+
+        ListRange[] claimed = new ListRange[workers];
+        long[] positions = new long[workers];
+        boolean left = true;
+        while (left) {
+            left = false;
+            for (int w = 0; w < workers; w++) {
+                if (claimed[w] == null) {
+                    for (ListRange range : list) {
+                        if (!range.inUse) {
+                            range.inUse = true;
+                            claimed[w] = range;
+                            break;
+                        }
+                    }
+                    if (claimed[w] == null) continue;
+                    positions[w] = claimed[w].start;
+                }
+                left = true;
+                long newPosition = positions[w] + HTTPRangeGetter.CHUNK_SIZE;
+                for (ListRange range : list) { // the chunk is marked as downloaded in the range it starts
+                    if (range.start == positions[w]) {
+                        if (range.end == newPosition - 1) {
+                            list.remove(range);
+                        } else {
+                            range.start = newPosition;
+                        }
+                        break;
+                    }
+                }
+                positions[w] = newPosition;
+                if (positions[w] > claimed[w].end) {
+                    claimed[w] = null;
+                }
+            }
+        }
+        if (!list.isEmpty()) {
+            throw new IllegalStateException("The list still has " + list.size() + " ranges");
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package idc;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Microbenchmark of the chunk allocation: several threads fill a chunk as an HTTPRangeGetter does and read it as the
+ * FileWriter does, once with chunks borrowed from a ChunkPool of heap or direct buffers and once with a new chunk and
+ * buffer per 4 KB. Run with -prof gc to compare the allocation rate and the garbage collections of each way.
+ */
+@State(Scope.Benchmark)
+@Threads(8)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkPoolBenchmark {
+
+    @Param({"4096"})
+    public int poolChunks;
+
+    private ChunkPool heapPool;
+
+    private ChunkPool directPool;
+
+    @Setup
+    public void setUp() {
+        heapPool = new ChunkPool(poolChunks, HTTPRangeGetter.CHUNK_SIZE, false);
+        directPool = new ChunkPool(poolChunks, HTTPRangeGetter.CHUNK_SIZE, true);
+    }
+
+    @Benchmark
+    public void poolHeap(Blackhole blackhole) throws InterruptedException {
+        pooled(heapPool, blackhole);
+    }
+
+    @Benchmark
+    public void poolDirect(Blackhole blackhole) throws InterruptedException {
+        pooled(directPool, blackhole);
+    }
+
+    @Benchmark
+    public void allocate(Blackhole blackhole) {
+        Chunk chunk = new Chunk(ByteBuffer.allocate(HTTPRangeGetter.CHUNK_SIZE));
+        fill(chunk);
+        blackhole.consume(chunk.getBuffer().get(chunk.getSize() - 1));
+    }
+
+    private static void pooled(ChunkPool chunkPool, Blackhole blackhole) throws InterruptedException {
+        Chunk chunk = chunkPool.borrow();
+        fill(chunk);
+        blackhole.consume(chunk.getBuffer().get(chunk.getSize() - 1));
+        chunkPool.release(chunk);
+    }
+
+    private static void fill(Chunk chunk) {
+        ByteBuffer buffer = chunk.getBuffer();
+        long value = 0;
+        while (buffer.hasRemaining()) {
+            buffer.putLong(value++);
+        }
+        chunk.fill(null, 0, HTTPRangeGetter.CHUNK_SIZE);
+    }
+}
@@ -0,0 +1,111 @@
+package idc;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Microbenchmark of the write paths: the FileWriters write a file with each WriteMode, from chunks which arrive in the
+ * order several HTTPRangeGetters produce them, i.e. the chunks of CONNECTIONS ranges interleaved. The chunks are
+ * filled by one thread without network, so the benchmark measures the FileWriters, the checksums and the journal. The
+ * score is the time to write the whole file.
+ *
+ * The file and its metadata are written to the working directory and deleted after each invocation. The -Didc.*
+ * options of IdcDm apply, e.g. -jvmArgsAppend "-Didc.writers=4 -Didc.journal.fsync=true".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FileWriterBenchmark {
+
+    @Param({"raf", "channel", "mmap"}) // the values of idc.writer, WriteMode is not public
+    public String writeMode;
+
+    @Param({"200000000"})
+    public long fileSize;
+
+    @Param({"8"})
+    public int connections;
+
+    private ChunkQueues queues;
+
+    private ChunkPool chunkPool;
+
+    private Metrics metrics;
+
+    private DownloadableMetadata metadata;
+
+    private DownloadFile downloadFile;
+
+    private Thread[] fileWriters;
+
+    @Setup(Level.Invocation)
+    public void setUp() throws Exception {
+        DownloadOptions options = new DownloadOptions(System.getProperties());
+        queues = new ChunkQueues(options.getWriters(), options.getQueueBytes());
+        chunkPool = new ChunkPool(options.getPoolChunks(), HTTPRangeGetter.CHUNK_SIZE, options.isPoolDirect());
+        metrics = new Metrics(queues);
+        metadata = new DownloadableMetadata(new URL("http://localhost/file-writer-benchmark.bin"), fileSize,
+                options.getDurabilityPolicy(), options.getEndgameBytes(), metrics);
+        downloadFile = new DownloadFile(metadata, WriteMode.fromName(writeMode), options.getPreallocation(),
+                queues.getWriters());
+        fileWriters = new Thread[queues.getWriters()];
+        for (int i = 0; i < fileWriters.length; i++) {
+            fileWriters[i] = new Thread(new FileWriter(queues, i, chunkPool, metrics, options.getCoalesceBytes(),
+                    options.getCoalesceMillis()));
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+        metadata.cleanUpMetadata();
+        new File(metadata.getFilenameWithExtension()).delete();
+    }
+
+    @Benchmark
+    public void write(Blackhole blackhole) throws Exception {
+        for (Thread fileWriter : fileWriters) {
+            fileWriter.start();
+        }
+
+        // the connections each download a consecutive part of the file, one chunk of each in turn
+        long partSize = (fileSize + connections - 1) / connections;
+        long[] offsets = new long[connections];
+        for (int i = 0; i < connections; i++) {
+            offsets[i] = i * partSize;
+        }
+        boolean left = true;
+        while (left) {
+            left = false;
+            for (int i = 0; i < connections; i++) {
+                long end = Math.min(fileSize, (i + 1) * partSize);
+                if (offsets[i] >= end) continue;
+                int length = (int) Math.min(HTTPRangeGetter.CHUNK_SIZE, end - offsets[i]);
+                Chunk chunk = chunkPool.borrow();
+                chunk.getBuffer().putLong(0, offsets[i]);
+                chunk.fill(downloadFile, offsets[i], length);
+                queues.put(chunk);
+                offsets[i] += length;
+                left = true;
+            }
+        }
+
+        queues.finish(downloadFile);
+        downloadFile.awaitClosed();
+        queues.finish(null);
+        for (Thread fileWriter : fileWriters) {
+            fileWriter.join();
+        }
+        if (!metadata.isCompleted()) {
+            throw new IllegalStateException("The file is not completed");
+        }
+        metrics.stop(); // takes the sample of the whole run
+        blackhole.consume(metrics.getWriteLatencyP99Micros());
+    }
+}
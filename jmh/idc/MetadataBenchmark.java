@@ -0,0 +1,104 @@
+package idc;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Microbenchmark of the range operations of the DownloadableMetadata: several threads claim ranges, advance them
+ * chunk by chunk, mark the chunks as downloaded and finish the ranges, as the HTTPRangeGetters and the FileWriter do.
+ * Once the unclaimed ranges are used up, idle threads steal the tails of the others' ranges, and at the end they hedge
+ * them. Nothing is downloaded or written, so the benchmark measures the locking of the metadata, the RangeTree and the
+ * journal. The score is the time to mark the whole file as downloaded.
+ *
+ * The metadata files are written to the working directory and deleted after each invocation. The -Didc.* options of
+ * IdcDm apply, e.g. -jvmArgsAppend -Didc.journal.fsync=true.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class MetadataBenchmark {
+
+    @Param({"8"})
+    public int threads;
+
+    @Param({"1000000000"})
+    public long fileSize;
+
+    private DownloadableMetadata metadata;
+
+    @Setup(Level.Invocation)
+    public void setUp() throws Exception {
+        DownloadOptions options = new DownloadOptions(System.getProperties());
+        metadata = new DownloadableMetadata(new URL("http://localhost/metadata-benchmark.bin"), fileSize,
+                options.getDurabilityPolicy(), options.getEndgameBytes(), new Metrics(new ChunkQueues(1, 1)));
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() throws Exception {
+        metadata.flush();
+        metadata.cleanUpMetadata();
+    }
+
+    @Benchmark
+    public void download(Blackhole blackhole) throws Exception {
+        AtomicLong ranges = new AtomicLong();
+        AtomicLong chunks = new AtomicLong();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+
+        Thread[] getters = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            getters[i] = new Thread(() -> {
+                PartBuffer parts = new PartBuffer(); // as each FileWriter has one
+                try {
+                    Range range;
+                    while ((range = metadata.getMissingRange()) != null) {
+                        long offset = range.getPosition(); // a hedged range is taken over from its position
+                        while (true) {
+                            int skipped;
+                            int length;
+                            synchronized (range) { // as the getters do, for the other thread of a hedged range
+                                skipped = range.behind(offset, HTTPRangeGetter.CHUNK_SIZE);
+                                length = range.advance(HTTPRangeGetter.CHUNK_SIZE - skipped);
+                            }
+                            offset += skipped;
+                            if (length == 0) {
+                                if (skipped > 0 && !range.isDone()) continue; // behind the other thread
+                                break;
+                            }
+                            metadata.takeMissingParts(offset, offset + length - 1, parts);
+                            metadata.updateDownloadedParts(parts);
+                            offset += length;
+                            chunks.incrementAndGet();
+                        }
+                        metadata.finishRange(range);
+                        ranges.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+        }
+        for (Thread getter : getters) {
+            getter.start();
+        }
+        for (Thread getter : getters) {
+            getter.join();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        if (!metadata.isCompleted()) {
+            throw new IllegalStateException("The metadata is not completed");
+        }
+        blackhole.consume(ranges.get());
+        blackhole.consume(chunks.get());
+    }
+}
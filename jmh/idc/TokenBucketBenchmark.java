@@ -0,0 +1,55 @@
+package idc;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Microbenchmark of the TokenBucket: several threads take chunks from one bucket, as throttled HTTPRangeGetters do,
+ * and from a bucket of their own under a shared parent, as the connections of a download do under the global limit.
+ * The score times the chunk size is the rate the threads got; with the limit of 1 MB/s it should be the limit, and the
+ * CPU time of the waiting threads (e.g. -prof stack or -prof perf) should be close to none.
+ */
+@State(Scope.Benchmark)
+@Threads(8)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenBucketBenchmark {
+
+    @Param({"1000000", "1000000000"})
+    public long bytesPerSecond;
+
+    private TokenBucket tokenBucket;
+
+    /**
+     * The bucket of a connection under the shared bucket
+     */
+    @State(Scope.Thread)
+    public static class Connection {
+
+        TokenBucket tokenBucket;
+
+        @Setup
+        public void setUp(TokenBucketBenchmark benchmark) {
+            tokenBucket = new TokenBucket(null, benchmark.tokenBucket);
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        tokenBucket = new TokenBucket(bytesPerSecond);
+    }
+
+    @Benchmark
+    public void take() throws InterruptedException {
+        tokenBucket.take(HTTPRangeGetter.CHUNK_SIZE);
+    }
+
+    @Benchmark
+    public void takeFromParent(Connection connection) throws InterruptedException {
+        connection.tokenBucket.take(HTTPRangeGetter.CHUNK_SIZE);
+    }
+}
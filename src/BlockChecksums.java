@@ -0,0 +1,301 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32C;
+
+/**
+ * CRC32C checksums of the blocks of a downloaded file, so that a resumed download can verify the bytes which are
+ * already in the file. CRC32C is computed by the CPU's crc32 instruction, so hashing every byte on the FileWriter's
+ * thread costs little; the optional digest of the whole file is SHA-256.
+ *
+ * The file is divided into blocks of BLOCK_SIZE. The checksum of a block is computed while its chunks are written:
+ * chunks which arrive in order are hashed right away, and when the last byte of the block is written, whatever was not
+ * hashed in order (e.g. the tail of a stolen range, which was written before the head) is read back from the file.
+ * The checksum is stored as soon as the block is complete, before the journal marks its last bytes as downloaded.
+ * Blocks are hashed under their own lock, so FileWriters which write different blocks do not wait for each other.
+ *
+ * On resume the complete blocks are read and hashed in parallel, and the blocks whose checksum does not match, or
+ * which have no checksum, are downloaded again.
+ *
+ * checksum file (extension sums): magic (int), block size (int), file size (long), blocks * checksum (long),
+ * the checksum of a block is its CRC32C with bit 32 set, or 0 if it is not computed yet
+ */
+class BlockChecksums {
+
+    static final int BLOCK_SIZE = 1024 * 1024;
+
+    private static final int MAGIC = 0x49444353; // "IDCS"
+
+    private static final int HEADER_SIZE = 16;
+
+    private static final int CHECKSUM_SIZE = 8;
+
+    private static final long COMPUTED = 1L << 32; // set in every computed checksum
+
+    private static final int READ_SIZE = 64 * 1024;
+
+    private final File dataFile;
+
+    private final File checksumFile;
+
+    private final long fileSize;
+
+    private final long[] checksums; // 0 until the block is complete
+
+    private final int[] unwritten; // bytes of each block which are not written yet, guarded by the block's lock
+
+    private final Map<Integer, Block> hashing = new HashMap<>(); // blocks which are partly written, guarded by this
+
+    private FileChannel checksumChannel;
+
+    private FileChannel dataChannel; // reads back the bytes which were not hashed in order
+
+    /**
+     * A block whose checksum is computed from the bytes written so far
+     */
+    private static final class Block {
+
+        final CRC32C crc = new CRC32C();
+
+        long hashed; // the bytes before this position are hashed
+    }
+
+    /**
+     * @param dataFile the downloaded file
+     * @param filenameWithoutExtension name of the checksum file without its extension
+     * @param fileSize size of the downloaded file
+     * @param resume true to load the checksums of the previous run, false to start without checksums
+     */
+    BlockChecksums(File dataFile, String filenameWithoutExtension, long fileSize, boolean resume) throws IOException {
+        this.dataFile = dataFile;
+        this.checksumFile = new File(filenameWithoutExtension + ".sums");
+        this.fileSize = fileSize;
+        int blocks = (int) ((fileSize + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        this.checksums = new long[blocks];
+        this.unwritten = new int[blocks];
+
+        if (resume && checksumFile.exists()) {
+            load();
+        }
+        checksumChannel = FileChannel.open(checksumFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (!resume) {
+            checksumChannel.truncate(0);
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(BLOCK_SIZE).putLong(fileSize);
+        checksumChannel.write(header.flip(), 0);
+    }
+
+    private void load() throws IOException {
+        try (FileChannel channel = FileChannel.open(checksumFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header, header.position()) > 0) ;
+            header.flip();
+            // checksums of another block size or file size are of no use
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != BLOCK_SIZE
+                    || header.getLong() != fileSize) return;
+
+            ByteBuffer entries = ByteBuffer.allocate(checksums.length * CHECKSUM_SIZE);
+            while (entries.hasRemaining() && channel.read(entries, HEADER_SIZE + entries.position()) > 0) ;
+            entries.flip();
+            for (int i = 0; i < checksums.length && entries.remaining() >= CHECKSUM_SIZE; i++) {
+                checksums[i] = entries.getLong();
+            }
+        }
+    }
+
+    /**
+     * Verifies the complete blocks against their checksums, in parallel.
+     *
+     * @param missingRanges the missing ranges as start/end pairs, the blocks they touch are not verified
+     * @return the blocks which have to be downloaded again as start/end pairs
+     */
+    long[] verify(long[] missingRanges) throws IOException {
+        track(missingRanges);
+        // without the file (e.g. it was deleted) every block is downloaded again
+        try (FileChannel channel = dataFile.exists()
+                ? FileChannel.open(dataFile.toPath(), StandardOpenOption.READ) : null) {
+            int[] corrupted = IntStream.range(0, checksums.length).parallel()
+                    .filter(block -> unwritten[block] == 0 && !matches(channel, block))
+                    .toArray();
+
+            long[] ranges = new long[corrupted.length * 2];
+            for (int i = 0; i < corrupted.length; i++) {
+                int block = corrupted[i];
+                checksums[block] = 0;
+                unwritten[block] = blockLength(block);
+                ranges[2 * i] = blockStart(block);
+                ranges[2 * i + 1] = blockStart(block) + blockLength(block) - 1;
+            }
+            return ranges;
+        }
+    }
+
+    private boolean matches(FileChannel channel, int block) {
+        if (channel == null || checksums[block] == 0) return false;
+        try {
+            CRC32C crc = new CRC32C();
+            read(channel, crc::update, blockStart(block), blockStart(block) + blockLength(block));
+            return (COMPUTED | crc.getValue()) == checksums[block];
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Starts to track the blocks which are still to be written
+     *
+     * @param missingRanges the missing ranges as start/end pairs
+     */
+    void track(long[] missingRanges) {
+        Arrays.fill(unwritten, 0);
+        for (int i = 0; i < missingRanges.length; i += 2) {
+            long start = missingRanges[i];
+            while (start <= missingRanges[i + 1]) {
+                int block = (int) (start / BLOCK_SIZE);
+                long end = Math.min(missingRanges[i + 1], blockStart(block) + BLOCK_SIZE - 1);
+                unwritten[block] += (int) (end - start + 1);
+                start = end + 1;
+            }
+        }
+    }
+
+    /**
+     * Hashes bytes which were written to the file, stores the checksum of each block which is complete now
+     *
+     * @param offset the offset of the bytes in the file
+     * @param data the bytes between its position and limit, the buffer is not modified
+     */
+    void update(long offset, ByteBuffer data) throws IOException {
+        data = data.duplicate();
+        while (data.hasRemaining()) {
+            int block = (int) (offset / BLOCK_SIZE);
+            int length = (int) Math.min(data.remaining(), blockStart(block) + BLOCK_SIZE - offset);
+            ByteBuffer piece = data.slice().limit(length);
+            data.position(data.position() + length);
+
+            Block hashed = hashing(block);
+            synchronized (hashed) {
+                if (hashed.hashed == offset) {
+                    hashed.crc.update(piece);
+                    hashed.hashed += length;
+                }
+
+                unwritten[block] -= length;
+                if (unwritten[block] == 0) {
+                    complete(block, hashed);
+                    hashed(block);
+                }
+            }
+            offset += length;
+        }
+    }
+
+    /**
+     * @return the state of a block which is partly written, the lock of the block
+     */
+    private synchronized Block hashing(int block) {
+        return hashing.computeIfAbsent(block, b -> {
+            Block started = new Block();
+            started.hashed = blockStart(b);
+            return started;
+        });
+    }
+
+    private synchronized void hashed(int block) {
+        hashing.remove(block);
+    }
+
+    private void complete(int block, Block hashed) throws IOException {
+        long end = blockStart(block) + blockLength(block);
+        if (hashed.hashed < end) {
+            read(dataChannel(), hashed.crc::update, hashed.hashed, end);
+        }
+        checksums[block] = COMPUTED | hashed.crc.getValue();
+
+        ByteBuffer entry = ByteBuffer.allocate(CHECKSUM_SIZE).putLong(0, checksums[block]);
+        long position = HEADER_SIZE + (long) block * CHECKSUM_SIZE;
+        while (entry.hasRemaining()) {
+            position += checksumChannel.write(entry, position);
+        }
+    }
+
+    private synchronized FileChannel dataChannel() throws IOException {
+        if (dataChannel == null) {
+            dataChannel = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ);
+        }
+        return dataChannel;
+    }
+
+    /**
+     * Hashes the bytes of the file from start (inclusive) to end (exclusive)
+     */
+    private static void read(FileChannel channel, Consumer<ByteBuffer> hash, long start, long end)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+        while (start < end) {
+            buffer.clear().limit((int) Math.min(READ_SIZE, end - start));
+            int read = channel.read(buffer, start);
+            if (read == -1) {
+                throw new IOException("File ends before the block");
+            }
+            hash.accept(buffer.flip());
+            start += read;
+        }
+    }
+
+    /**
+     * Forces the stored checksums to the storage device
+     */
+    synchronized void force() throws IOException {
+        checksumChannel.force(false);
+    }
+
+    synchronized void close() throws IOException {
+        checksumChannel.close();
+        if (dataChannel != null) {
+            dataChannel.close();
+            dataChannel = null;
+        }
+    }
+
+    void delete() {
+        try {
+            close();
+        } catch (IOException e) {
+            // deleted anyway
+        }
+        checksumFile.delete();
+    }
+
+    private long blockStart(int block) {
+        return (long) block * BLOCK_SIZE;
+    }
+
+    private int blockLength(int block) {
+        return (int) Math.min(BLOCK_SIZE, fileSize - blockStart(block));
+    }
+
+    /**
+     * @return the SHA-256 digest of the whole file as a hex string
+     */
+    static String digest(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            read(channel, digest::update, 0, channel.size());
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e); // every Java platform supports it
+        }
+    }
+}
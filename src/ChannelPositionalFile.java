@@ -0,0 +1,39 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes chunks with positional FileChannel writes.
+ *
+ * The chunk's buffer is handed to the channel as it is, so there is no seek and no truncating copy. Positional writes
+ * do not share a file pointer, so several FileWriters write at the same time.
+ */
+class ChannelPositionalFile implements PositionalFile {
+
+    private final FileChannel fileChannel;
+
+    ChannelPositionalFile(File file) throws IOException {
+        this.fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    @Override
+    public void write(Chunk chunk) throws IOException {
+        ByteBuffer buffer = chunk.getBuffer();
+        long position = chunk.getOffset();
+        while (buffer.hasRemaining()) { // a positional write may write less than requested
+            position += fileChannel.write(buffer, position);
+        }
+    }
+
+    @Override
+    public void force() throws IOException {
+        fileChannel.force(true);
+    }
+
+    @Override
+    public void close() throws IOException {
+        fileChannel.close();
+    }
+}
@@ -1,7 +1,12 @@
+import java.nio.ByteBuffer;
+
 /**
  * A chunk of data file
  *
  * Contains an offset, bytes of data, and size
+ *
+ * Regular chunks are owned by a ChunkPool: a HTTPRangeGetter borrows one, fills its buffer and puts it into the
+ * queue, the FileWriter writes it to its DownloadFile and gives it back to the pool.
  */
 class Chunk {
 
@@ -12,36 +17,78 @@ class Chunk {
         REGULAR
     }
 
-    /* A chunk can either be a regular chunk or a finished marker to signal the filewriter it can terminate */
+    /* A chunk can either be a regular chunk or a finished marker to signal the filewriter that a file is complete,
+     * or that it can terminate if the marker has no file */
     private Type type = Type.REGULAR;
 
-    private byte[] data;
+    private DownloadFile file; // the file the chunk belongs to
+
+    private final ByteBuffer data; // the buffer is reused, only the bytes between position and limit are valid
 
     private long offset; //from beginning of file, ie. number of startbyte
 
-    private int size_in_bytes; // we need this because the data array is not guaranteed to be fully filled
+    private int size_in_bytes; // we need this because the data buffer is not guaranteed to be fully filled
 
-    Chunk(byte[] data, long offset, int size_in_bytes) {
-        this.data = data != null ? data.clone() : null;
+    Chunk(ByteBuffer data) {
+        this.data = data;
+    }
+
+    /**
+     * Marks the bytes read into the buffer as the content of this chunk
+     *
+     * @param file the file the chunk belongs to
+     * @param offset the offset of the first byte in the file
+     * @param size_in_bytes the number of bytes read into the buffer
+     */
+    void fill(DownloadFile file, long offset, int size_in_bytes) {
+        this.file = file;
         this.offset = offset;
         this.size_in_bytes = size_in_bytes;
+        this.data.position(0).limit(size_in_bytes);
+    }
+
+    /**
+     * Empties the chunk for its next use, it no longer refers to its file
+     */
+    void reset() {
+        this.file = null;
+        this.data.clear();
     }
 
     byte[] getData() {
-        if (data.length != size_in_bytes) { // truncate the data in case it is not fully filled
+        if (!data.hasArray() || data.capacity() != size_in_bytes) { // truncate the data in case it is not fully filled
             byte[] truncatedData = new byte[size_in_bytes];
-            System.arraycopy(this.data, 0, truncatedData, 0, size_in_bytes);
+            data.get(0, truncatedData);
             return truncatedData;
         }
+        return data.array();
+    }
+
+    /**
+     * The buffer of this chunk without copying it, writing it to a channel consumes it
+     */
+    ByteBuffer getBuffer() {
         return data;
     }
 
+    int getSize() {
+        return size_in_bytes;
+    }
+
     long getOffset() {
         return offset;
     }
 
-    void setAsFinishedMarker() {
-        type = Type.FINISHED_MARKER;
+    DownloadFile getFile() {
+        return file;
+    }
+
+    /**
+     * @param file the file which has no more chunks, or null if no file has any more chunks
+     */
+    void setAsFinishedMarker(DownloadFile file) {
+        this.type = Type.FINISHED_MARKER;
+        this.file = file;
     }
 
     boolean isFinishedMarker() {
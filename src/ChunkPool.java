@@ -0,0 +1,112 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of chunks and their buffers.
+ *
+ * The HTTPRangeGetters borrow a chunk, fill it and hand it over to the queue, the FileWriter releases it after
+ * writing. Chunks are created lazily up to the capacity of the pool, after that a getter waits until the FileWriter
+ * releases a chunk. This way no memory is allocated per chunk once the pool is warm, and the pool also bounds the
+ * memory held by chunks which are waiting to be written.
+ */
+class ChunkPool {
+
+    private final BlockingQueue<Chunk> idleChunks;
+
+    private final int capacity;
+
+    private final int bufferSize;
+
+    private final boolean direct; // allocate the buffers outside of the heap
+
+    private final AtomicInteger created = new AtomicInteger();
+
+    private final AtomicInteger borrowed = new AtomicInteger();
+
+    private final AtomicLong waits = new AtomicLong();
+
+    /**
+     * @param capacity maximal number of chunks
+     * @param bufferSize size of the buffer of each chunk
+     * @param direct true for direct buffers, false for heap buffers
+     */
+    ChunkPool(int capacity, int bufferSize, boolean direct) {
+        this.idleChunks = new ArrayBlockingQueue<>(capacity);
+        this.capacity = capacity;
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+    }
+
+    /**
+     * Takes an idle chunk from the pool, blocks if all chunks are borrowed
+     */
+    Chunk borrow() throws InterruptedException {
+        Chunk chunk = idleChunks.poll();
+        if (chunk == null) {
+            chunk = create();
+        }
+        if (chunk == null) {
+            waits.incrementAndGet();
+            chunk = idleChunks.take();
+        }
+        borrowed.incrementAndGet();
+        return chunk;
+    }
+
+    /**
+     * Gives a borrowed chunk back to the pool
+     */
+    void release(Chunk chunk) {
+        borrowed.decrementAndGet();
+        chunk.reset();
+        idleChunks.add(chunk);
+    }
+
+    private Chunk create() {
+        int count;
+        do {
+            count = created.get();
+            if (count == capacity) {
+                return null;
+            }
+        } while (!created.compareAndSet(count, count + 1));
+
+        return new Chunk(direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize));
+    }
+
+    /**
+     * @return true if the buffers are allocated outside of the heap
+     */
+    boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Number of chunks currently held by getters, the queue or the FileWriter
+     */
+    int getBorrowed() {
+        return borrowed.get();
+    }
+
+    /**
+     * Number of chunks which can be borrowed without waiting
+     */
+    int getIdle() {
+        return idleChunks.size() + capacity - created.get();
+    }
+
+    /**
+     * Number of times a getter had to wait for a chunk
+     */
+    long getWaits() {
+        return waits.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkPool borrowed: " + getBorrowed() + " idle: " + getIdle() + " waits: " + getWaits();
+    }
+}
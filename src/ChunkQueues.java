@@ -0,0 +1,108 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The queues of the FileWriters, one per writer.
+ *
+ * The file offsets are divided into stripes of STRIPE_SIZE which are assigned to the writers in turn, and a chunk is
+ * queued for the writer of the stripe it starts in. So the writers write to different parts of the files at the same
+ * time, while the chunks of one stripe are written in the order they were queued. A stripe is a block of the
+ * BlockChecksums, so the chunks of a block are hashed by one writer.
+ *
+ * The queues together hold at most a budget of bytes: a getter which queues a chunk waits while the budget is used up,
+ * until the writers have written enough bytes, so the getters slow down to the pace of the disk. The bytes of a chunk
+ * count until the writer has written them, also while they are gathered into a run (see FileWriter). The queues are linked
+ * queues, whose producers and consumer take different locks, and the budget is a semaphore without fairness.
+ *
+ * The finished markers go to every queue: a file is closed by the last writer which takes its marker, when all
+ * writers are done with its chunks.
+ */
+class ChunkQueues {
+
+    static final long STRIPE_SIZE = BlockChecksums.BLOCK_SIZE;
+
+    private final List<BlockingQueue<Chunk>> queues = new ArrayList<>();
+
+    private final Semaphore budget; // one permit per byte which may still be queued
+
+    /**
+     * @param writers number of FileWriters
+     * @param budgetBytes bytes which may be queued at most
+     */
+    ChunkQueues(int writers, int budgetBytes) {
+        for (int i = 0; i < writers; i++) {
+            queues.add(new LinkedBlockingQueue<>());
+        }
+        this.budget = new Semaphore(budgetBytes);
+    }
+
+    /**
+     * Queues a filled chunk for the writer of its stripe, waits while the queues hold the budget
+     */
+    void put(Chunk chunk) throws InterruptedException {
+        budget.acquire(chunk.getSize());
+        queues.get((int) (chunk.getOffset() / STRIPE_SIZE % queues.size())).add(chunk);
+    }
+
+    /**
+     * Waits for the next chunk of a writer
+     */
+    Chunk take(int writer) throws InterruptedException {
+        return queues.get(writer).take();
+    }
+
+    /**
+     * Waits for the next chunk of a writer at most for the given time
+     *
+     * @return the chunk, or null if none was queued in time
+     */
+    Chunk poll(int writer, long timeout, TimeUnit unit) throws InterruptedException {
+        return queues.get(writer).poll(timeout, unit);
+    }
+
+    /**
+     * Gives back the budget of bytes which a writer has written
+     */
+    void written(int bytes) {
+        budget.release(bytes);
+    }
+
+    /**
+     * @return true if the queue of a writer is empty while getters wait for the budget
+     */
+    boolean isStarved(int writer) {
+        return queues.get(writer).isEmpty() && budget.hasQueuedThreads();
+    }
+
+    /**
+     * Queues a finished marker for every writer
+     *
+     * @param file the file which has no more chunks, or null to stop the writers
+     */
+    void finish(DownloadFile file) {
+        for (BlockingQueue<Chunk> queue : queues) {
+            final Chunk finishedChunk = new Chunk(null);
+            finishedChunk.setAsFinishedMarker(file);
+            queue.add(finishedChunk);
+        }
+    }
+
+    int getWriters() {
+        return queues.size();
+    }
+
+    /**
+     * Number of chunks waiting to be written
+     */
+    int size() {
+        int size = 0;
+        for (BlockingQueue<Chunk> queue : queues) {
+            size += queue.size();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,191 @@
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Adapts the number of range getters to the measured throughput of the download.
+ *
+ * It starts with a few getters and probes with more getters, as long as every added getter makes the download faster
+ * by at least a fraction of what a getter carries on average (hill climbing). The number of getters added by a probe
+ * doubles after every successful probe and falls back to one when a probe does not pay off, in which case the added
+ * getters are retired again. If the throughput collapses, e.g. because the server throttles too many connections,
+ * half of the getters are retired (multiplicative decrease). After a retirement the number of getters is held for a
+ * while before probing again.
+ */
+class ConnectionController {
+
+    private static final long INTERVAL = 1000; // time between two measurements in ms
+
+    private static final double MIN_GAIN = 0.25; // an added getter must add a quarter of the per-getter throughput
+
+    private static final double MAX_DROP = 0.5; // the throughput collapsed if it halved from one interval to the next
+
+    private static final int HOLD_INTERVALS = 5; // intervals to wait after a retirement before probing again
+
+    private final CompletionService<Void> completionService;
+
+    private final Supplier<RangeGetter> getterFactory;
+
+    private final DownloadableMetadata downloadableMetadata;
+
+    private final int initialGetters;
+
+    private final int maxGetters;
+
+    /* the getters which are not retired, the most recently started one last */
+    private final Deque<RangeGetter> getters = new ArrayDeque<>();
+
+    private final Deque<Future<Void>> futures = new ArrayDeque<>();
+
+    private int runningGetters; // including retired getters which still finish their range
+
+    private int probeSize = 1; // number of getters the next probe adds
+
+    private int probing; // number of getters added for the current interval
+
+    private double baseline; // throughput before the probe
+
+    private double reference; // throughput of the previous interval
+
+    private int hold;
+
+    /**
+     * @param executor executor to run the getters on, it must not limit the number of threads, it may be shared
+     * @param getterFactory creates a new getter of the download
+     * @param downloadableMetadata metadata of the download to measure the throughput with
+     * @param initialGetters number of getters to start with
+     * @param maxGetters upper bound on the number of getters
+     */
+    ConnectionController(ExecutorService executor, Supplier<RangeGetter> getterFactory,
+                         DownloadableMetadata downloadableMetadata, int initialGetters, int maxGetters) {
+        this.completionService = new ExecutorCompletionService<>(executor);
+        this.getterFactory = getterFactory;
+        this.downloadableMetadata = downloadableMetadata;
+        this.initialGetters = initialGetters;
+        this.maxGetters = maxGetters;
+    }
+
+    /**
+     * Starts the getters and adapts their number until all getters have ended
+     */
+    void run() throws InterruptedException {
+        for (int i = 0; i < initialGetters; i++) {
+            startGetter();
+        }
+        System.err.println("ConnectionController: starting with " + getters.size() + " connections");
+
+        long lastBytes = downloadableMetadata.getBytesDownloaded();
+        long lastTime = System.nanoTime();
+        boolean warmUp = true; // the first interval after a change only lets the getters get up to speed
+
+        while (!getters.isEmpty()) {
+            long deadline = lastTime + TimeUnit.MILLISECONDS.toNanos(INTERVAL);
+            // return as soon as a getter ends, so that the end of the download is noticed right away
+            Future<Void> done = completionService.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (done != null) {
+                runningGetters--;
+                removeEndedGetters();
+                continue;
+            }
+
+            long bytes = downloadableMetadata.getBytesDownloaded();
+            long time = System.nanoTime();
+            double throughput = (bytes - lastBytes) * 1e9 / (time - lastTime);
+            lastBytes = bytes;
+            lastTime = time;
+
+            if (warmUp) {
+                warmUp = false;
+            } else {
+                int before = getters.size();
+                adjust(throughput);
+                if (getters.size() != before) {
+                    System.err.println("ConnectionController: " + getters.size() + " connections at "
+                            + (long) (throughput / 1000) + " KBps");
+                    warmUp = true;
+                }
+            }
+        }
+
+        // retired getters may still finish their range
+        while (runningGetters > 0) {
+            completionService.take();
+            runningGetters--;
+        }
+    }
+
+    private void adjust(double throughput) {
+        int count = getters.size();
+        if (probing > 0) {
+            int added = probing;
+            probing = 0;
+            double perGetter = baseline / Math.max(1, count - added);
+            if (throughput >= baseline + MIN_GAIN * added * perGetter) {
+                reference = throughput;
+                probeSize *= 2;
+                probe(throughput);
+            } else { // the added getters did not pay off
+                retireGetters(added);
+                reference = baseline;
+                probeSize = 1;
+                hold = HOLD_INTERVALS;
+            }
+        } else if (throughput < reference * (1 - MAX_DROP)) {
+            retireGetters(count / 2);
+            reference = throughput;
+            hold = HOLD_INTERVALS;
+        } else {
+            reference = throughput;
+            if (hold > 0) {
+                hold--;
+            } else {
+                probe(throughput);
+            }
+        }
+    }
+
+    private void probe(double throughput) {
+        // nothing to measure against if no data arrives, e.g. while the server does not respond
+        if (getters.size() >= maxGetters || throughput <= 0) return;
+
+        baseline = throughput;
+        probing = Math.min(probeSize, maxGetters - getters.size());
+        for (int i = 0; i < probing; i++) {
+            startGetter();
+        }
+    }
+
+    private void startGetter() {
+        RangeGetter getter = getterFactory.get();
+        getters.addLast(getter);
+        futures.addLast(completionService.submit(getter, null));
+        runningGetters++;
+    }
+
+    private void retireGetters(int count) {
+        for (int i = 0; i < count && getters.size() > 1; i++) {
+            getters.removeLast().retire();
+            futures.removeLast();
+        }
+    }
+
+    private void removeEndedGetters() {
+        Deque<RangeGetter> remainingGetters = new ArrayDeque<>();
+        Deque<Future<Void>> remainingFutures = new ArrayDeque<>();
+        while (!getters.isEmpty()) {
+            RangeGetter getter = getters.removeFirst();
+            Future<Void> future = futures.removeFirst();
+            if (!future.isDone()) {
+                remainingGetters.addLast(getter);
+                remainingFutures.addLast(future);
+            }
+        }
+        getters.addAll(remainingGetters);
+        futures.addAll(remainingFutures);
+    }
+}
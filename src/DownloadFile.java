@@ -0,0 +1,122 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The file of a download, which the FileWriter writes the chunks of the download to.
+ *
+ * After its last chunk a download puts a finished marker of its file into the queue of every FileWriter, the last
+ * FileWriter which takes it then flushes the metadata, closes the file and wakes up the download. The FileWriters
+ * write the chunks of a file concurrently and in any order, the metadata marks each chunk as downloaded on its own.
+ * If the file cannot be written, the download is aborted and the FileWriter drops the remaining chunks of the file,
+ * the other downloads go on.
+ */
+class DownloadFile {
+
+    private final DownloadableMetadata downloadableMetadata;
+
+    private final PositionalFile positionalFile;
+
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    private final AtomicInteger writers; // FileWriters which did not take the finished marker yet
+
+    private volatile boolean failed;
+
+    /**
+     * @param preallocation how the file is prepared before the first chunk is written
+     * @param writers number of FileWriters which write the file
+     * @throws IOException if there is not enough space for the file, or it cannot be opened
+     */
+    DownloadFile(DownloadableMetadata downloadableMetadata, WriteMode writeMode, Preallocation preallocation,
+                 int writers) throws IOException {
+        this.downloadableMetadata = downloadableMetadata;
+        this.writers = new AtomicInteger(writers);
+        File file = new File(downloadableMetadata.getFilenameWithExtension());
+        preallocation.apply(file, downloadableMetadata.getFileSize());
+        this.positionalFile = writeMode.open(file, downloadableMetadata.getFileSize());
+        downloadableMetadata.setDataSync(positionalFile::force);
+    }
+
+    /**
+     * Writes and hashes the chunk and marks it as downloaded, unless writing the file failed before.
+     *
+     * A chunk whose bytes were all written before is ignored, e.g. one of a range which was released after some of its
+     * chunks were queued and then downloaded again. Of a chunk which was written in part, only the missing bytes are
+     * hashed, since the checksums count every byte once. The missing bytes are taken from the metadata before they
+     * are written, so that a duplicate of the chunk which another FileWriter writes at the same time does not hash
+     * them too.
+     *
+     * @param missing the buffer of the FileWriter for the missing parts of the chunk
+     */
+    void write(Chunk chunk, PartBuffer missing) throws IOException {
+        if (failed) return;
+
+        long pointerBefore = chunk.getOffset();
+        long pointerAfter = pointerBefore + chunk.getSize();
+        downloadableMetadata.takeMissingParts(pointerBefore, pointerAfter - 1, missing);
+        if (missing.isEmpty()) return;
+
+        ByteBuffer data = chunk.getBuffer().duplicate(); // writing may consume the buffer
+        try {
+            positionalFile.write(chunk);
+        } catch (IOException e) {
+            downloadableMetadata.releaseParts(missing);
+            throw e;
+        }
+        if (missing.size() == 1 && missing.start(0) == pointerBefore && missing.end(0) == pointerAfter - 1) {
+            downloadableMetadata.updateChecksums(pointerBefore, data);
+        } else {
+            for (int i = 0; i < missing.size(); i++) {
+                downloadableMetadata.updateChecksums(missing.start(i), data.duplicate()
+                        .position((int) (missing.start(i) - pointerBefore))
+                        .limit((int) (missing.end(i) - pointerBefore + 1)));
+            }
+        }
+        downloadableMetadata.updateDownloadedParts(missing);
+    }
+
+    /**
+     * Called by a FileWriter when it takes the finished marker of the file
+     *
+     * @return true for the last FileWriter, which closes the file
+     */
+    boolean writerFinished() {
+        return writers.decrementAndGet() == 0;
+    }
+
+    /**
+     * Persists the metadata and closes the file, called by the FileWriter after the last chunk
+     */
+    void close() throws IOException {
+        try {
+            if (!failed) {
+                downloadableMetadata.flush();
+            }
+            positionalFile.close();
+        } finally {
+            closed.countDown();
+        }
+    }
+
+    /**
+     * Aborts the download after the file could not be written
+     */
+    void fail() {
+        failed = true;
+        downloadableMetadata.abort();
+    }
+
+    boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * Waits until the FileWriter has closed the file
+     */
+    void awaitClosed() throws InterruptedException {
+        closed.await();
+    }
+}
@@ -0,0 +1,379 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.*;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Downloads one or many URLs in one process.
+ *
+ * All downloads share the queues and the FileWriters, the ChunkPool, the executor which runs the range getters, the
+ * HttpClient of the httpclient engine and the global TokenBucket. Each download has its own DownloadableMetadata,
+ * DownloadFile and TokenBucket, and a download which fails does not affect the others.
+ */
+class DownloadManager {
+
+    private static final long STATUS_INTERVAL = 100; // time between two updates of the progress in ms
+
+    private static final int PROBE_ATTEMPTS = 3; // a mirror is left out after this many failed probes
+
+    private static final String DIGEST_PREFIX = "sha256:"; // marks the expected digest among the URLs of a download
+
+    private final DownloadOptions options;
+
+    private final Integer numberOfWorkers; // null to adapt the number of connections to the throughput
+
+    private final Long maxBytesPerSecond; // limit of each download
+
+    private final ChunkQueues queues;
+
+    private final ChunkPool chunkPool;
+
+    private final TokenBucket globalBucket; // the root of the bandwidth limits, shared by all downloads
+
+    private final HttpStatistics httpStatistics = new HttpStatistics();
+
+    private final ExecutorService executor; // runs the getters of all downloads
+
+    private final HttpClient httpClient; // shared by the getters of all downloads, null for the socket engine
+
+    private final Thread[] fileWriters; // each one writes the chunks of its stripes of the files
+
+    private final Metrics metrics;
+
+    /* samples the metrics and prints the progress */
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "metrics");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private OutputStream streamOutput; // the file of a download is written to it while it is downloaded, or null
+
+    /* names of the files which are currently downloaded, two downloads must not write the same file */
+    private final Set<String> activeFiles = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param numberOfWorkers number of concurrent connections per download, or null to adapt it to the throughput
+     * @param maxBytesPerSecond limit on bytes-per-second per download, or null
+     * @param options tuning options of the downloads
+     */
+    DownloadManager(Integer numberOfWorkers, Long maxBytesPerSecond, DownloadOptions options) {
+        this.options = options;
+        this.numberOfWorkers = numberOfWorkers;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.chunkPool = new ChunkPool(options.getPoolChunks(), HTTPRangeGetter.CHUNK_SIZE, options.isPoolDirect());
+        this.globalBucket = new TokenBucket(options.getGlobalLimit());
+        this.executor = options.getThreadMode().newExecutor();
+        this.httpClient = options.getHttpEngine() != HttpEngine.HTTP_CLIENT ? null : HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(HttpClientRangeGetter.CONNECT_TIMEOUT)
+                .followRedirects(HttpClient.Redirect.NORMAL) // only the probes are redirected
+                .build();
+        this.queues = new ChunkQueues(options.getWriters(), options.getQueueBytes());
+        this.metrics = new Metrics(queues);
+        this.metrics.start(scheduler, options.getMetricsInterval(), options.getMetricsLog(), options.isMetricsJmx());
+        this.fileWriters = new Thread[options.getWriters()];
+        for (int i = 0; i < fileWriters.length; i++) {
+            fileWriters[i] = new Thread(new FileWriter(queues, i, chunkPool, metrics,
+                    options.getCoalesceBytes(), options.getCoalesceMillis()), "writer-" + i);
+            fileWriters[i].start();
+        }
+    }
+
+    /**
+     * @param streamOutput stream to write the file of the next download to in order while it is downloaded, or null
+     */
+    void setStreamOutput(OutputStream streamOutput) {
+        this.streamOutput = streamOutput;
+    }
+
+    /**
+     * Downloads the URLs, at most options.getBatchParallel() at the same time
+     *
+     * @return the number of failed downloads
+     */
+    int downloadAll(List<String> downloadTargets) throws InterruptedException {
+        final ExecutorService downloads = Executors.newFixedThreadPool(options.getBatchParallel());
+        final List<Future<Boolean>> results = new ArrayList<>();
+        for (String downloadTarget : downloadTargets) {
+            results.add(downloads.submit(() -> download(downloadTarget, downloadTarget + ": ", false)));
+        }
+        downloads.shutdown();
+
+        int failed = 0;
+        for (Future<Boolean> result : results) {
+            try {
+                if (!result.get()) failed++;
+            } catch (ExecutionException e) {
+                System.err.println("DownloadManager: " + e.getCause() + " occurred");
+                failed++;
+            }
+        }
+        System.err.printf("%d of %d downloads succeeded.\n", downloadTargets.size() - failed, downloadTargets.size());
+        return failed;
+    }
+
+    /**
+     * Initiate the file's metadata and download the missing ranges:
+     * 1. Setup the TokenBucket, DownloadableMetadata, DownloadFile, and HTTPRangeGetters
+     *    which keep taking missing ranges from the DownloadableMetadata until none are left
+     * 2. Join the HTTPRangeGetters and send the finish marker of the file to the queues
+     * 3. Wait until the FileWriters have closed the file, and the file is streamed if there is a stream output
+     *
+     * Finally, print "Download succeeded/failed" and delete the metadata as needed.
+     *
+     * @param downloadTarget URL to download, or several URLs of mirrors of the same file separated by whitespace,
+     *                       the file is named after the first one. A word sha256:HEX among them is the expected
+     *                       SHA-256 digest of the whole file.
+     * @param prefix printed in front of the messages of the download
+     * @param showProgress true to print the downloaded percentage
+     * @return true if the download succeeded
+     */
+    boolean download(String downloadTarget, String prefix, boolean showProgress) throws InterruptedException {
+        final List<URL> urls = new ArrayList<>();
+        String expectedDigest = null;
+        for (String mirrorTarget : downloadTarget.trim().split("\\s+")) {
+            if (mirrorTarget.regionMatches(true, 0, DIGEST_PREFIX, 0, DIGEST_PREFIX.length())) {
+                expectedDigest = mirrorTarget.substring(DIGEST_PREFIX.length());
+                continue;
+            }
+            final URL url = parseUrl(mirrorTarget, prefix);
+            if (url == null) return false;
+            urls.add(url);
+        }
+        if (urls.isEmpty()) {
+            System.out.println(prefix + "The Url you entered is not valid.");
+            return false;
+        }
+        final URL url = urls.get(0);
+
+        final String fileName = DownloadableMetadata.fileName(url);
+        if (!activeFiles.add(fileName)) {
+            System.err.println(prefix + "Another download writes to " + fileName + ", Download Failed.");
+            return false;
+        }
+        try {
+            return download(urls, expectedDigest, prefix, showProgress);
+        } finally {
+            activeFiles.remove(fileName);
+        }
+    }
+
+    private boolean download(List<URL> urls, String expectedDigest, String prefix, boolean showProgress)
+            throws InterruptedException {
+        final URL url = urls.get(0);
+
+        // probe the mirrors, the workers request their ranges from where a probe was redirected to
+        final ErrorBudget errorBudget = new ErrorBudget(options.getRetryPolicy());
+        final List<Mirror> mirrorList = new ArrayList<>();
+        long size = -1;
+        for (URL mirrorUrl : urls) {
+            final Mirror mirror = probe(mirrorUrl, errorBudget, prefix);
+            if (mirror == null) continue;
+            if (size == -1) {
+                size = mirror.getSize();
+            }
+            if (mirror.getSize() == size) {
+                mirrorList.add(mirror);
+            } else {
+                System.err.println(prefix + "Size of " + mirrorUrl + " differs, it is not used.");
+            }
+        }
+        if (mirrorList.isEmpty()) return false;
+        final MirrorSet mirrors = new MirrorSet(mirrorList);
+
+        // setup objects
+        final TokenBucket tokenBucket = new TokenBucket(maxBytesPerSecond, globalBucket);
+        final DownloadableMetadata downloadableMetadata;
+        final DownloadFile downloadFile;
+        try {
+            downloadableMetadata = new DownloadableMetadata(url, size, options.getDurabilityPolicy(),
+                    options.getEndgameBytes(), metrics);
+            // filling the file with zeros would hold back the first streamed byte until the whole file is written once
+            final Preallocation preallocation = streamOutput != null && options.getPreallocation() == Preallocation.FULL
+                    ? Preallocation.SPARSE : options.getPreallocation();
+            downloadFile = new DownloadFile(downloadableMetadata, options.getWriteMode(), preallocation,
+                    queues.getWriters());
+        } catch (IOException e) {
+            System.err.println(prefix + "IOException occurred: " + e.getMessage());
+            System.err.println(prefix + "Download Failed.");
+            return false;
+        }
+        StreamingOutput streamingOutput = null;
+        Thread streamThread = null;
+        if (streamOutput != null) {
+            downloadableMetadata.stream(options.getStreamWindow());
+            streamingOutput = new StreamingOutput(downloadableMetadata, streamOutput);
+            streamThread = new Thread(streamingOutput, "stream");
+            streamThread.start();
+        }
+        final ScheduledFuture<?> downloadStatus = !showProgress ? null : scheduler.scheduleAtFixedRate(
+                new DownloadStatus(downloadableMetadata, metrics), 0, STATUS_INTERVAL, TimeUnit.MILLISECONDS);
+
+        // start the download workers, each one takes the next missing range as soon as it is done with its range
+        final Supplier<RangeGetter> getterFactory = () -> {
+            final TokenBucket connectionBucket = new TokenBucket(options.getConnectionLimit(), tokenBucket);
+            if (httpClient != null) {
+                return new HttpClientRangeGetter(httpClient, mirrors, downloadableMetadata, downloadFile, queues,
+                        chunkPool, connectionBucket, httpStatistics, metrics.newWorker(), errorBudget);
+            }
+            return new HTTPRangeGetter(mirrors, downloadableMetadata, downloadFile, queues, chunkPool,
+                    connectionBucket, httpStatistics, metrics.newWorker(), errorBudget, options.isHttpPipelining());
+        };
+        try {
+            // wait until no missing range is left or the error budget is used up
+            if (numberOfWorkers != null) {
+                final List<Future<?>> getters = new ArrayList<>();
+                for (int i = 0; i < numberOfWorkers; i++) {
+                    getters.add(executor.submit(getterFactory.get()));
+                }
+                for (Future<?> getter : getters) {
+                    try {
+                        getter.get();
+                    } catch (ExecutionException e) {
+                        System.err.println(prefix + "RangeGetter: " + e.getCause() + " occurred");
+                        downloadableMetadata.abort();
+                    }
+                }
+            } else {
+                new ConnectionController(executor, getterFactory, downloadableMetadata,
+                        options.getInitialConnections(), options.getMaxConnections()).run();
+            }
+        } finally {
+            // Stopping the file, the FileWriters close it after the chunks which are still queued
+            queues.finish(downloadFile);
+            tokenBucket.terminate();
+        }
+
+        // wait until the FileWriters have closed the file
+        downloadFile.awaitClosed();
+
+        // the stream writes the rest of the written prefix
+        if (streamThread != null) {
+            streamingOutput.stop();
+            streamThread.join();
+            System.err.printf("%sStreamed %d bytes, the first after %d ms.\n", prefix, streamingOutput.getStreamed(),
+                    streamingOutput.getFirstByteMillis());
+        }
+
+        // Stopping DownloadStatus
+        if (downloadStatus != null) {
+            downloadStatus.cancel(false);
+        }
+
+        if (mirrorList.size() > 1) {
+            for (Mirror mirror : mirrorList) {
+                System.err.println(prefix + mirror);
+            }
+        }
+
+        // validate download
+        if (!downloadFile.isFailed() && downloadableMetadata.isCompleted()
+                && (streamingOutput == null || streamingOutput.getStreamed() == downloadableMetadata.getFileSize())) {
+            // clean up metadata files
+            downloadableMetadata.cleanUpMetadata();
+            if (expectedDigest != null && !matchesDigest(downloadableMetadata, expectedDigest, prefix)) {
+                System.err.println(prefix + "Download Failed.");
+                return false;
+            }
+            System.err.println(prefix + "Download Succeeded.");
+            return true;
+        }
+        System.err.println(prefix + "Download Failed.");
+        return false;
+    }
+
+    /**
+     * Stops the FileWriters and the executor after the last download and prints statistics
+     */
+    void close() throws InterruptedException {
+        queues.finish(null);
+        for (Thread fileWriter : fileWriters) {
+            fileWriter.join();
+        }
+        executor.shutdown();
+        scheduler.shutdown();
+        metrics.stop();
+
+        System.err.println(chunkPool);
+        System.err.println(httpStatistics);
+    }
+
+    /**
+     * Compares the SHA-256 digest of the downloaded file with the expected one
+     */
+    private static boolean matchesDigest(DownloadableMetadata downloadableMetadata, String expectedDigest,
+                                         String prefix) {
+        try {
+            String digest = BlockChecksums.digest(new File(downloadableMetadata.getFilenameWithExtension()));
+            if (digest.equalsIgnoreCase(expectedDigest)) return true;
+            System.err.println(prefix + "SHA-256 of the file is " + digest + ", expected " + expectedDigest);
+        } catch (IOException e) {
+            System.err.println(prefix + "IOException occurred: " + e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Probes a mirror for the size of the file, a failed probe is retried with backoff while the error budget lasts
+     *
+     * @return the mirror, or null if it could not be probed
+     */
+    private Mirror probe(URL url, ErrorBudget errorBudget, String prefix) throws InterruptedException {
+        for (int failures = 1; ; failures++) {
+            try {
+                return httpClient != null ? probe(httpClient, url) : probe(url);
+            } catch (IOException | URISyntaxException | NumberFormatException e) {
+                if (failures == PROBE_ATTEMPTS || !errorBudget.spend()) {
+                    System.out.println(prefix + "Could not get Filesize.");
+                    return null;
+                }
+            }
+            errorBudget.backoff(failures);
+        }
+    }
+
+    private static Mirror probe(URL url) throws IOException {
+        URLConnection connection = url.openConnection();
+        connection.connect();
+        Mirror mirror = new Mirror(connection.getURL(), connection.getContentLengthLong());
+        if (connection instanceof HttpURLConnection) {
+            ((HttpURLConnection) connection).disconnect();
+        }
+        return mirror;
+    }
+
+    /**
+     * Probes with the first byte of the file, which also opens the HTTP/2 connection to the server. Getters which
+     * start at the same time then share this connection, instead of racing to open one each.
+     */
+    private static Mirror probe(HttpClient httpClient, URL url)
+            throws IOException, URISyntaxException, InterruptedException {
+        HttpResponse<Void> response = httpClient.send(HttpRequest.newBuilder(url.toURI())
+                .header("Range", "bytes=0-0")
+                .build(), HttpResponse.BodyHandlers.discarding());
+        // bytes 0-0/size, or the length of the whole file if the server ignores the range
+        String contentRange = response.headers().firstValue("Content-Range").orElse("");
+        long size = contentRange.contains("/")
+                ? Long.parseLong(contentRange.substring(contentRange.lastIndexOf('/') + 1))
+                : response.headers().firstValueAsLong("Content-Length").orElse(-1);
+        return new Mirror(response.uri().toURL(), size);
+    }
+
+    private static URL parseUrl(String downloadTarget, String prefix) {
+        try {
+            return new URL(downloadTarget);
+        } catch (MalformedURLException e) {
+            System.out.println(prefix + "The Url you entered is not valid.");
+            return null;
+        }
+    }
+}
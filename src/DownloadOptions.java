@@ -0,0 +1,318 @@
+import java.util.Properties;
+
+/**
+ * Tuning options of a download which are not part of the command-line arguments.
+ *
+ * They are read from system properties, e.g. java -Didc.writer=mmap IdcDm URL,
+ * so the usage of IdcDm stays the same.
+ */
+class DownloadOptions {
+
+    static final String WRITER_PROPERTY = "idc.writer";
+
+    static final String POOL_CHUNKS_PROPERTY = "idc.pool.chunks";
+
+    static final String POOL_DIRECT_PROPERTY = "idc.pool.direct";
+
+    static final String JOURNAL_FLUSH_BYTES_PROPERTY = "idc.journal.flushBytes";
+
+    static final String JOURNAL_FLUSH_MILLIS_PROPERTY = "idc.journal.flushMillis";
+
+    static final String JOURNAL_FSYNC_PROPERTY = "idc.journal.fsync";
+
+    static final String JOURNAL_COMPACT_RECORDS_PROPERTY = "idc.journal.compactRecords";
+
+    static final String HTTP_PIPELINING_PROPERTY = "idc.http.pipelining";
+
+    static final String HTTP_ENGINE_PROPERTY = "idc.http.engine";
+
+    static final String CONNECTIONS_INITIAL_PROPERTY = "idc.connections.initial";
+
+    static final String CONNECTIONS_MAX_PROPERTY = "idc.connections.max";
+
+    static final String LIMIT_GLOBAL_PROPERTY = "idc.limit.global";
+
+    static final String LIMIT_CONNECTION_PROPERTY = "idc.limit.connection";
+
+    static final String BATCH_PARALLEL_PROPERTY = "idc.batch.parallel";
+
+    static final String THREADS_PROPERTY = "idc.threads";
+
+    static final String WRITERS_PROPERTY = "idc.writers";
+
+    static final String PREALLOCATE_PROPERTY = "idc.preallocate";
+
+    static final String QUEUE_BYTES_PROPERTY = "idc.queue.bytes";
+
+    static final String COALESCE_BYTES_PROPERTY = "idc.writer.coalesceBytes";
+
+    static final String COALESCE_MILLIS_PROPERTY = "idc.writer.coalesceMillis";
+
+    static final String ENDGAME_BYTES_PROPERTY = "idc.endgame.bytes";
+
+    static final String RETRY_BUDGET_PROPERTY = "idc.retry.budget";
+
+    static final String RETRY_BACKOFF_MILLIS_PROPERTY = "idc.retry.backoffMillis";
+
+    static final String RETRY_MAX_BACKOFF_MILLIS_PROPERTY = "idc.retry.maxBackoffMillis";
+
+    static final String STREAM_PROPERTY = "idc.stream";
+
+    static final String STREAM_WINDOW_PROPERTY = "idc.stream.window";
+
+    static final String METRICS_INTERVAL_PROPERTY = "idc.metrics.interval";
+
+    static final String METRICS_LOG_PROPERTY = "idc.metrics.log";
+
+    static final String METRICS_JMX_PROPERTY = "idc.metrics.jmx";
+
+    private final WriteMode writeMode;
+
+    private final int poolChunks;
+
+    private final boolean poolDirect;
+
+    private final DurabilityPolicy durabilityPolicy;
+
+    private final boolean httpPipelining;
+
+    private final HttpEngine httpEngine;
+
+    private final int initialConnections;
+
+    private final int maxConnections;
+
+    private final Long globalLimit;
+
+    private final Long connectionLimit;
+
+    private final int batchParallel;
+
+    private final ThreadMode threadMode;
+
+    private final int writers;
+
+    private final Preallocation preallocation;
+
+    private final int queueBytes;
+
+    private final int coalesceBytes;
+
+    private final long coalesceMillis;
+
+    private final long endgameBytes;
+
+    private final RetryPolicy retryPolicy;
+
+    private final boolean stream;
+
+    private final long streamWindow;
+
+    private final long metricsInterval;
+
+    private final String metricsLog;
+
+    private final boolean metricsJmx;
+
+    /**
+     * @param properties the properties to read the options from, missing options get their default
+     * @throws IllegalArgumentException if an option has an invalid value
+     */
+    DownloadOptions(Properties properties) {
+        this.writeMode = WriteMode.fromName(properties.getProperty(WRITER_PROPERTY, WriteMode.FILE_CHANNEL.toString()));
+        this.poolChunks = positiveInt(properties, POOL_CHUNKS_PROPERTY, 4096); // 16mb of 4kb chunks
+        this.poolDirect = Boolean.parseBoolean(properties.getProperty(POOL_DIRECT_PROPERTY, "false"));
+        this.durabilityPolicy = new DurabilityPolicy(
+                positiveLong(properties, JOURNAL_FLUSH_BYTES_PROPERTY, 4L * 1024 * 1024),
+                positiveLong(properties, JOURNAL_FLUSH_MILLIS_PROPERTY, 1000),
+                Boolean.parseBoolean(properties.getProperty(JOURNAL_FSYNC_PROPERTY, "false")),
+                positiveInt(properties, JOURNAL_COMPACT_RECORDS_PROPERTY, 16384));
+        this.httpPipelining = Boolean.parseBoolean(properties.getProperty(HTTP_PIPELINING_PROPERTY, "true"));
+        this.httpEngine = HttpEngine.fromName(
+                properties.getProperty(HTTP_ENGINE_PROPERTY, HttpEngine.SOCKET.toString()));
+        this.maxConnections = positiveInt(properties, CONNECTIONS_MAX_PROPERTY, 16);
+        this.initialConnections = Math.min(positiveInt(properties, CONNECTIONS_INITIAL_PROPERTY, 2), maxConnections);
+        this.globalLimit = properties.getProperty(LIMIT_GLOBAL_PROPERTY) == null
+                ? null : positiveLong(properties, LIMIT_GLOBAL_PROPERTY, 0);
+        this.connectionLimit = properties.getProperty(LIMIT_CONNECTION_PROPERTY) == null
+                ? null : positiveLong(properties, LIMIT_CONNECTION_PROPERTY, 0);
+        this.batchParallel = positiveInt(properties, BATCH_PARALLEL_PROPERTY, 4);
+        this.threadMode = ThreadMode.fromName(properties.getProperty(THREADS_PROPERTY, ThreadMode.PLATFORM.toString()));
+        this.writers = positiveInt(properties, WRITERS_PROPERTY, 1);
+        this.preallocation = Preallocation.fromName(
+                properties.getProperty(PREALLOCATE_PROPERTY, Preallocation.SPARSE.toString()));
+        this.queueBytes = positiveInt(properties, QUEUE_BYTES_PROPERTY, 64 * 1024 * 1024);
+        if (queueBytes < HTTPRangeGetter.CHUNK_SIZE) { // a chunk which does not fit would wait forever
+            throw new IllegalArgumentException("Invalid value of " + QUEUE_BYTES_PROPERTY + ": " + queueBytes);
+        }
+        this.coalesceBytes = positiveInt(properties, COALESCE_BYTES_PROPERTY, 1024 * 1024);
+        this.coalesceMillis = positiveLong(properties, COALESCE_MILLIS_PROPERTY, 50);
+        this.endgameBytes = positiveLong(properties, ENDGAME_BYTES_PROPERTY, 4L * 1024 * 1024);
+        this.retryPolicy = new RetryPolicy(
+                positiveInt(properties, RETRY_BUDGET_PROPERTY, 64),
+                positiveLong(properties, RETRY_BACKOFF_MILLIS_PROPERTY, 250),
+                positiveLong(properties, RETRY_MAX_BACKOFF_MILLIS_PROPERTY, 30000));
+        this.stream = Boolean.parseBoolean(properties.getProperty(STREAM_PROPERTY, "false"));
+        this.streamWindow = positiveLong(properties, STREAM_WINDOW_PROPERTY, 64L * 1024 * 1024);
+        this.metricsInterval = positiveLong(properties, METRICS_INTERVAL_PROPERTY, 1000);
+        this.metricsLog = properties.getProperty(METRICS_LOG_PROPERTY);
+        this.metricsJmx = Boolean.parseBoolean(properties.getProperty(METRICS_JMX_PROPERTY, "false"));
+    }
+
+    private static int positiveInt(Properties properties, String name, int defaultValue) {
+        long number = positiveLong(properties, name, defaultValue);
+        if (number > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid value of " + name + ": " + number);
+        }
+        return (int) number;
+    }
+
+    private static long positiveLong(Properties properties, String name, long defaultValue) {
+        String value = properties.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            long number = Long.parseLong(value);
+            if (number > 0) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // handled below
+        }
+        throw new IllegalArgumentException("Invalid value of " + name + ": " + value);
+    }
+
+    WriteMode getWriteMode() {
+        return writeMode;
+    }
+
+    int getPoolChunks() {
+        return poolChunks;
+    }
+
+    boolean isPoolDirect() {
+        return poolDirect;
+    }
+
+    DurabilityPolicy getDurabilityPolicy() {
+        return durabilityPolicy;
+    }
+
+    boolean isHttpPipelining() {
+        return httpPipelining;
+    }
+
+    HttpEngine getHttpEngine() {
+        return httpEngine;
+    }
+
+    int getInitialConnections() {
+        return initialConnections;
+    }
+
+    int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @return bytes per second of all downloads together, or null if unlimited
+     */
+    Long getGlobalLimit() {
+        return globalLimit;
+    }
+
+    /**
+     * @return bytes per second of each connection, or null if unlimited
+     */
+    Long getConnectionLimit() {
+        return connectionLimit;
+    }
+
+    /**
+     * @return number of downloads of a URL list which run at the same time
+     */
+    int getBatchParallel() {
+        return batchParallel;
+    }
+
+    ThreadMode getThreadMode() {
+        return threadMode;
+    }
+
+    /**
+     * @return number of FileWriters, which write different stripes of the files at the same time
+     */
+    int getWriters() {
+        return writers;
+    }
+
+    Preallocation getPreallocation() {
+        return preallocation;
+    }
+
+    /**
+     * @return bytes which may wait in the queues of the FileWriters, the getters wait while they are used up
+     */
+    int getQueueBytes() {
+        return queueBytes;
+    }
+
+    /**
+     * @return size of the runs of contiguous chunks a FileWriter writes at once, no more than a chunk to write every
+     * chunk on its own
+     */
+    int getCoalesceBytes() {
+        return coalesceBytes;
+    }
+
+    /**
+     * @return time after which a FileWriter writes a run which is not full
+     */
+    long getCoalesceMillis() {
+        return coalesceMillis;
+    }
+
+    /**
+     * @return missing bytes of a download below which idle getters download the slowest ranges a second time
+     */
+    long getEndgameBytes() {
+        return endgameBytes;
+    }
+
+    RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * @return true to write the file to stdout in order while it is downloaded
+     */
+    boolean isStream() {
+        return stream;
+    }
+
+    /**
+     * @return bytes ahead of the streamed prefix of the file which are downloaded at most
+     */
+    long getStreamWindow() {
+        return streamWindow;
+    }
+
+    /**
+     * @return time between two samples of the metrics in milliseconds
+     */
+    long getMetricsInterval() {
+        return metricsInterval;
+    }
+
+    /**
+     * @return file to append the metrics to as JSON lines, "-" for stderr, or null
+     */
+    String getMetricsLog() {
+        return metricsLog;
+    }
+
+    boolean isMetricsJmx() {
+        return metricsJmx;
+    }
+}
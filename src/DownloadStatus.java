@@ -1,32 +1,29 @@
 /**
- * Runnable to print out the percentage of already downloaded bytes
+ * Runnable to print out the percentage of already downloaded bytes, run periodically by the metrics scheduler
  */
 public class DownloadStatus implements Runnable  {
 
     private final DownloadableMetadata downloadableMetadata;
-    
+
+    private final Metrics metrics;
+
     private long percentage;
-    
-    DownloadStatus(DownloadableMetadata downloadableMetadata) {
+
+    DownloadStatus(DownloadableMetadata downloadableMetadata, Metrics metrics) {
         this.downloadableMetadata = downloadableMetadata;
+        this.metrics = metrics;
         this.percentage = -1;
     }
 
-
     @Override
     public void run() {
-    	// Prints out the percentage with no repetition of percentages
-        while (!IdcDm.downloadStopped.get()) {
-            if (downloadableMetadata.getBytesDownloaded() >= downloadableMetadata.getFileSize()) {
-                break;
-            }
-            
-            long percent = downloadableMetadata.getBytesDownloaded() * 100 / downloadableMetadata.getFileSize();
-            
-            if (percent != percentage) {
-            	this.percentage = percent;
-            	System.err.println("Downloaded " + percent + "%");
-            }
+        // Prints out the percentage with no repetition of percentages
+        long percent = downloadableMetadata.getBytesDownloaded() * 100
+                / Math.max(1, downloadableMetadata.getFileSize());
+        if (percent != percentage) {
+            this.percentage = percent;
+            long rate = metrics.getBytesPerSecond(); // 0 until the first sample
+            System.err.println("Downloaded " + percent + "%" + (rate > 0 ? " at " + rate / 1000 + " KBps" : ""));
         }
     }
 }
@@ -1,7 +1,13 @@
 import java.io.*;
 import java.net.URL;
-import java.util.*;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Describes a file's metadata: URL, file name, size, and which parts already downloaded to disk.
@@ -14,11 +20,11 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class DownloadableMetadata {
 
-    /* for safety we persist the metadata alternating in two files
-    * if one is corrupted during saving, the other is still readable */
-    private final File file0;
+    /* persists the missing ranges as checkpoints (alternating in two files) plus a journal of downloaded ranges */
+    private final RangeJournal journal;
 
-    private final File file1;
+    /* checksums of the blocks of the file, to verify the downloaded bytes on resume */
+    private final BlockChecksums checksums;
 
     private String filenameWithExtension;
 
@@ -26,178 +32,575 @@ public class DownloadableMetadata {
 
     private long fileSize;
 
-    private ArrayList<Range> missingRanges = new ArrayList<>();
+    /* the missing ranges, ordered by start and claimed by the HTTPRangeGetters while they download them */
+    private final RangeTree missingRanges = new RangeTree();
 
-    private long bytesDownloaded;
+    /* the parts of chunks which the FileWriters are writing and hashing, one buffer per writer, the same parts of a
+     * duplicate chunk are left to that writer */
+    private final List<PartBuffer> writingParts = new ArrayList<>();
 
-    /* fixed Range size to initialize the ranges for the first download */
+    private volatile long bytesDownloaded; // written under the lock, read by the progress and the controller
+
+    private int activeRanges; // claimed ranges which are still being downloaded, a hedged range counts twice
+
+    /* the claimed ranges which are downloaded by one getter, and those which are downloaded by two */
+    private final Set<Range> downloadingRanges = new HashSet<>();
+    private final Set<Range> hedgedRanges = new HashSet<>();
+
+    /* idle getters hedge the slowest ranges once at most this many bytes are left to download */
+    private final long endgameBytes;
+
+    private final Metrics metrics;
+
+    private boolean aborted; // no more ranges are handed out, e.g. because the file cannot be written
+
+    /* while the file is streamed, ranges are only claimed this many bytes ahead of its written prefix, 0 if not */
+    private long streamWindow;
+
+    /* guards the ranges, a lock instead of the monitor so that waiting getters on virtual threads do not pin their
+     * carrier thread */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition rangeReturned = lock.newCondition(); // a claimed range was released or finished
+
+    private final Condition prefixWritten = lock.newCondition(); // the written prefix of the file grew
+
+    /* guards the journal, so that appending and forcing it do not block the getters which claim ranges; taken before
+     * the lock when both are needed */
+    private final ReentrantLock journalLock = new ReentrantLock();
+
+    /* size of the ranges until the throughput of the connections is measured */
     final static long RANGE_SIZE = 491520; //480kb
 
-    /* Flag for alternating between 0 and 1, the downloaded Ranges are saved in two files (extension meta0/meta1) */
-    private AtomicBoolean fileCounter = new AtomicBoolean(true);
+    /* bounds of the size of the ranges */
+    final static long MIN_RANGE_SIZE = 131072; //128kb
+    final static long MAX_RANGE_SIZE = 64L * 1024 * 1024; //64mb
+
+    /* a range takes at least this long at the measured throughput, and at least this many request latencies, so that
+     * the latency and the slow start of a request are a small part of it */
+    private static final double RANGE_SECONDS = 1;
+    private static final int LATENCIES_PER_RANGE = 16;
+
+    private static final double SAMPLE_WEIGHT = 0.25; // of a new measurement in the moving averages
 
-    DownloadableMetadata(URL url, long fileSize) {
-        this.filenameWithExtension = url.getFile().substring(url.getFile().lastIndexOf("/")+ 1, url.getFile().length());
+    /* moving averages of the throughput of a range and of the latency of a request, 0 until measured */
+    private double bytesPerSecond;
+    private double latencyNanos;
+
+    /* an idle getter only steals the tail of another getter's range if both halves have at least this size */
+    final static long MIN_STEAL_SIZE = 16 * HTTPRangeGetter.CHUNK_SIZE; //64kb
+
+    /**
+     * @param endgameBytes bytes left to download below which idle getters hedge the slowest ranges
+     * @throws IOException if existing metadata cannot be read or the first checkpoint cannot be written
+     */
+    DownloadableMetadata(URL url, long fileSize, DurabilityPolicy durabilityPolicy, long endgameBytes,
+                         Metrics metrics) throws IOException {
+        this.endgameBytes = endgameBytes;
+        this.metrics = metrics;
+        this.filenameWithExtension = fileName(url);
         this.filenameWithoutExtension = this.filenameWithExtension.substring(0, this.filenameWithExtension.lastIndexOf("."));
         this.fileSize = fileSize;
 
-        this.file0 = new File(this.filenameWithoutExtension + ".meta0");
-        this.file1 = new File(this.filenameWithoutExtension + ".meta1");
+        this.journal = new RangeJournal(this.filenameWithoutExtension, durabilityPolicy, metrics);
+        long[] checkpoint = null;
+        if (journal.exists()) {
+            checkpoint = readCheckpoint();
+            if (checkpoint == null) {
+                System.err.println("Found a metadata file of an older version, restarting download...");
+                journal.delete();
+            }
+        }
+        final boolean resume = checkpoint != null;
+        this.checksums = new BlockChecksums(new File(this.filenameWithExtension), this.filenameWithoutExtension,
+                fileSize, resume);
 
-        if (file0.exists() || file1.exists()) {
+        if (resume) {
             System.err.println("Found a metadata file, continuing download...");
-            read(this.file0);
+            read(checkpoint);
+            verify();
             this.bytesDownloaded = initDownloadStatus();
         }
 
-        if (missingRanges.size() == 0) {
+        if (missingRanges.isEmpty()) {
             initMissingRanges();
+            saveCheckpoint(); // the base for the journal
         }
+        checksums.track(this.missingRanges.toArray());
+    }
 
-        setDownloadRangesNotInUse();
+    /**
+     * @return the name of the file the url is downloaded to
+     */
+    static String fileName(URL url) {
+        return url.getFile().substring(url.getFile().lastIndexOf("/")+ 1, url.getFile().length());
     }
 
     /**
-     * mark all ranges as not in use before download starts
+     * A first time download - the whole file is missing, the ranges are cut from its front as they are claimed
      */
-    private void setDownloadRangesNotInUse() {
-        for (Range range : missingRanges) {
-            range.setInUse(false);
+    private void initMissingRanges() {
+        this.addRange(0, this.fileSize - 1);
+    }
+
+    private long initDownloadStatus() {
+        return this.fileSize - this.missingRanges.getRemaining();
+    }
+
+    long getBytesDownloaded() {
+    	return this.bytesDownloaded;
+    }
+    
+    /**
+     * @return the missing ranges of the newest checkpoint, or null if there is none of the current format
+     */
+    private long[] readCheckpoint() throws IOException {
+        try {
+            return journal.readCheckpoint();
+        } catch (IOException e) {
+            System.err.println("DownloadableMetadata: IOException occurred reading file");
+            throw e;
         }
     }
 
     /**
-     * A first time download - create the ranges for all workers using the fixed RANGE_SIZE
+     * Loads the checkpoint and replays the journal on top of it
      */
-    private void initMissingRanges() {
+    private void read(long[] ranges) throws IOException {
+        try {
+            for (int i = 0; i < ranges.length; i += 2) {
+                this.addRange(ranges[i], ranges[i + 1]);
+            }
+            long[] downloaded = journal.readJournal();
+            for (int i = 0; i < downloaded.length; i += 2) {
+                this.missingRanges.remove(downloaded[i], downloaded[i + 1]);
+            }
+        } catch (IOException e) {
+            System.err.println("DownloadableMetadata: IOException occurred reading file");
+            throw e;
+        }
+    }
 
-        long numRanges = this.fileSize / RANGE_SIZE;
-        long remainder = this.fileSize % RANGE_SIZE;
+    /**
+     * Verifies the downloaded blocks, the corrupted ones are missing again
+     */
+    private void verify() throws IOException {
+        long[] corrupted = checksums.verify(this.missingRanges.toArray());
+        if (corrupted.length == 0) return;
 
-        if (numRanges == 0) { // in case the file size is smaller than the range size
-            long rangeStart = 0;
-            long rangeEnd = this.fileSize - 1;
-            Range workerRange = new Range(rangeStart, rangeEnd);
-            this.addRange(workerRange);
-        } else {
-            for (int i = 0; i < numRanges; i++) {
+        for (int i = 0; i < corrupted.length; i += 2) {
+            this.addRange(corrupted[i], corrupted[i + 1]);
+        }
+        System.err.println("Found " + corrupted.length / 2 + " corrupted blocks, downloading them again...");
+        saveCheckpoint(); // the journal only removes ranges, the checkpoint has to add them
+    }
 
-                long rangeStart = i * RANGE_SIZE;
-                long rangeEnd = ((i + 1) * RANGE_SIZE) - 1;
+    void addRange(long start, long end) {
+        this.missingRanges.add(start, end);
+    }
 
-                if (i == numRanges - 1) {
-                    rangeEnd += remainder;
+    String getFilenameWithExtension() {
+        return filenameWithExtension;
+    }
+
+    long getFileSize() {
+        return fileSize;
+    }
+
+    boolean isCompleted() {
+        lock.lock();
+        try {
+            return this.missingRanges.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Streams the file: ranges are claimed in order at most windowBytes ahead of the first byte which is not written
+     * yet, and the range holding that byte is hedged as soon as the window is claimed, so that the prefix grows
+     * steadily.
+     */
+    void stream(long windowBytes) {
+        lock.lock();
+        try {
+            this.streamWindow = windowBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the written prefix of the file extends past an offset
+     *
+     * @param offset the end of the bytes which were read from the prefix before
+     * @return the end of the written prefix, which may still be offset after the timeout, or -1 if the download was
+     *         aborted
+     */
+    long awaitWritten(long offset, long timeout, TimeUnit unit) throws InterruptedException {
+        lock.lock();
+        try {
+            long nanos = unit.toNanos(timeout);
+            while (writtenPrefix() <= offset && !this.aborted && nanos > 0) {
+                nanos = prefixWritten.awaitNanos(nanos);
+            }
+            long prefix = writtenPrefix();
+            return prefix <= offset && this.aborted ? -1 : prefix;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long writtenPrefix() {
+        return this.missingRanges.isEmpty() ? this.fileSize : this.missingRanges.first();
+    }
+
+    /**
+     * @return the offset before which ranges are claimed
+     */
+    private long claimLimit() {
+        return this.streamWindow == 0 ? Long.MAX_VALUE : writtenPrefix() + this.streamWindow;
+    }
+
+    /**
+     * Claims the first missing range which is not downloaded by another HTTPRangeGetter, at most rangeSize() long.
+     * If all are claimed, the range with the most remaining bytes is split and the second half is claimed.
+     * If that is too small to be split and at most endgameBytes are left to download, the range which will take the
+     * longest is hedged: it is returned to download its rest a second time, whichever getter is faster hands over the
+     * bytes.
+     * Otherwise waits until a range is released or finished, or while the file is streamed, until its window moves.
+     *
+     * @return the claimed range, or null if all missing ranges are downloaded or the download is aborted
+     */
+    Range getMissingRange() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!this.aborted) {
+                Range range = this.missingRanges.claim(rangeSize(), claimLimit());
+                if (range == null) {
+                    range = this.missingRanges.steal(MIN_STEAL_SIZE);
+                }
+                if (range != null) {
+                    this.downloadingRanges.add(range);
+                    this.activeRanges++;
+                    return range;
                 }
+                range = slowestRange();
+                if (range != null) {
+                    this.downloadingRanges.remove(range);
+                    this.hedgedRanges.add(range);
+                    this.activeRanges++;
+                    metrics.hedged();
+                    return range;
+                }
+                if (this.activeRanges == 0 && !this.missingRanges.hasUnclaimed()) {
+                    return null;
+                }
+                rangeReturned.await(); // an active range may still be released, or the stream window move
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The size of the next range: long enough that a request is worth its latency at the measured throughput, and
+     * short enough that the getters share the missing bytes (or the stream window) evenly, so the ranges shrink
+     * towards the end.
+     */
+    private long rangeSize() {
+        long size = RANGE_SIZE;
+        if (this.bytesPerSecond > 0) {
+            double seconds = Math.max(RANGE_SECONDS, LATENCIES_PER_RANGE * this.latencyNanos / 1e9);
+            size = (long) (this.bytesPerSecond * seconds);
+        }
+        long shared = this.missingRanges.getRemaining();
+        if (this.streamWindow > 0) {
+            shared = Math.min(shared, this.streamWindow);
+        }
+        size = Math.min(size, shared / (2L * (this.activeRanges + 1)));
+        return Math.max(MIN_RANGE_SIZE, Math.min(MAX_RANGE_SIZE, size));
+    }
 
-                Range workerRange = new Range(rangeStart, rangeEnd);
-                this.addRange(workerRange);
+    /**
+     * Called by the range getters with the time from sending a request until its response arrived
+     */
+    void latencyMeasured(long nanos) {
+        lock.lock();
+        try {
+            this.latencyNanos = this.latencyNanos == 0 ? nanos
+                    : (1 - SAMPLE_WEIGHT) * this.latencyNanos + SAMPLE_WEIGHT * nanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the range downloaded by one getter which will take the longest to finish, or null if it is not the
+     *         endgame or no range has a chunk left. While the file is streamed, the range holding the first byte which
+     *         is not written yet, unless it is hedged already.
+     */
+    private Range slowestRange() {
+        if (this.streamWindow > 0) {
+            return headRange();
+        }
+
+        // nothing is left to claim, so the bytes which are not downloaded yet are those of the claimed ranges
+        long left = 0;
+        for (Range range : this.downloadingRanges) {
+            left += Math.max(0, range.getEnd() - range.getPosition() + 1);
+        }
+        for (Range range : this.hedgedRanges) {
+            left += Math.max(0, range.getEnd() - range.getPosition() + 1);
+        }
+        if (left > this.endgameBytes) return null;
+
+        final long now = System.nanoTime();
+        Range slowest = null;
+        long slowestNanos = 0;
+        for (Range range : this.downloadingRanges) {
+            if (range.getEnd() - range.getPosition() < HTTPRangeGetter.CHUNK_SIZE) continue;
+            long nanos = range.getRemainingNanos(now);
+            if (slowest == null || nanos > slowestNanos) {
+                slowest = range;
+                slowestNanos = nanos;
             }
         }
+        return slowest;
     }
 
-    private long initDownloadStatus() {
-        long status = 0;
-        for (Range range : this.missingRanges) {
-            status += range.getLength();
+    /**
+     * @return the claimed range which starts first if it is downloaded by one getter and has a chunk left, or null
+     */
+    private Range headRange() {
+        Range head = null;
+        for (Range range : this.downloadingRanges) {
+            if (head == null || range.getStart() < head.getStart()) {
+                head = range;
+            }
+        }
+        for (Range range : this.hedgedRanges) {
+            if (head != null && range.getStart() < head.getStart()) return null;
         }
-        
-        return this.fileSize - status;
+        if (head == null || head.getEnd() - head.getPosition() < HTTPRangeGetter.CHUNK_SIZE) return null;
+        return head;
     }
 
-    long getBytesDownloaded() {
-    	return this.bytesDownloaded;
+    /**
+     * Claims the first missing range which is not downloaded by another HTTPRangeGetter, without stealing or waiting
+     *
+     * @return the claimed range, or null if all missing ranges are claimed
+     */
+    Range claimMissingRange() {
+        lock.lock();
+        try {
+            if (this.aborted) return null;
+
+            Range range = this.missingRanges.claim(rangeSize(), claimLimit());
+            if (range != null) {
+                this.downloadingRanges.add(range);
+                this.activeRanges++;
+            }
+            return range;
+        } finally {
+            lock.unlock();
+        }
     }
-    
-    @SuppressWarnings("unchecked") // due to typeCheck warning when casting object to ArrayList
-    private void read(File file) {
+
+    /**
+     * Gives the part of a claimed range after its position back, so that another HTTPRangeGetter can download it.
+     * A hedged range stays with its other getter.
+     */
+    void releaseRange(Range range) {
+        lock.lock();
         try {
-            FileInputStream fileInputStream = new FileInputStream(file);
-            ObjectInputStream objectInputStream = new ObjectInputStream(fileInputStream);
-            this.missingRanges = (ArrayList<Range>) objectInputStream.readObject();
-            fileInputStream.close();
-            objectInputStream.close();
-        } catch (ClassNotFoundException|IOException e) {
-           if (file == this.file0) { // try other file
-               read(this.file1);
-           } else {
-               System.err.println("DownloadableMetadata: IOException/ClassNotFoundExcpetion occurred reading file");
-               IdcDm.exitWithFailure();
-           }
+            if (this.hedgedRanges.remove(range)) {
+                this.downloadingRanges.add(range);
+            } else {
+                this.downloadingRanges.remove(range);
+                this.missingRanges.release(range);
+            }
+            this.activeRanges--;
+            rangeReturned.signalAll();
+        } finally {
+            lock.unlock();
         }
     }
 
-    void addRange(Range range) {
-        this.missingRanges.add(range);
+    /**
+     * Marks a claimed range as downloaded, it stays missing until the FileWriter has written it.
+     * The other getter of a hedged range stops when it sees that the range is done.
+     */
+    void finishRange(Range range) {
+        lock.lock();
+        try {
+            if (range.getLength() >= MIN_RANGE_SIZE && this.downloadingRanges.contains(range)) {
+                // the throughput of the range including its request, unless two getters downloaded it
+                double rate = range.getBytesPerSecond(System.nanoTime());
+                this.bytesPerSecond = this.bytesPerSecond == 0 ? rate
+                        : (1 - SAMPLE_WEIGHT) * this.bytesPerSecond + SAMPLE_WEIGHT * rate;
+            }
+            this.missingRanges.finish(range);
+            this.hedgedRanges.remove(range);
+            this.downloadingRanges.remove(range);
+            this.activeRanges--;
+            rangeReturned.signalAll();
+        } finally {
+            lock.unlock();
+        }
     }
 
-    String getFilenameWithExtension() {
-        return filenameWithExtension;
+    /**
+     * Stops handing out ranges, the HTTPRangeGetters stop after their current range
+     */
+    void abort() {
+        lock.lock();
+        try {
+            this.aborted = true;
+            rangeReturned.signalAll();
+            prefixWritten.signalAll();
+        } finally {
+            lock.unlock();
+        }
     }
 
-    long getFileSize() {
-        return fileSize;
+    /**
+     * Takes the parts of the bytes from start to end which are still missing and which no other FileWriter is writing.
+     * Duplicates of a chunk, e.g. of a hedged range, may be queued for different writers when they start in different
+     * stripes, so that each byte is hashed once only one of them takes it.
+     *
+     * @param taken the buffer of the FileWriter, it gets the taken parts, which are passed to updateDownloadedParts
+     *              once they are written, or to releaseParts if they cannot be written
+     */
+    void takeMissingParts(long start, long end, PartBuffer taken) {
+        lock.lock();
+        try {
+            taken.clear();
+            this.missingRanges.intersect(start, end, taken);
+            for (PartBuffer writing : this.writingParts) {
+                taken.subtract(writing);
+            }
+            if (!taken.isEmpty()) {
+                this.writingParts.add(taken);
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
-    synchronized List<Range> getMissingRanges() {
-    	return this.missingRanges;
+    /**
+     * Gives parts taken by takeMissingParts back without marking them as downloaded
+     */
+    void releaseParts(PartBuffer taken) {
+        lock.lock();
+        try {
+            this.writingParts.remove(taken);
+        } finally {
+            lock.unlock();
+        }
     }
-    
-    synchronized Range getMissingRange() {
-    	for (Range range : this.missingRanges) {
-    		if (!range.getInUse()) {
-    			range.setInUse(true);
-    			return range;
-    		}
-    	}
-    	return null;
-    }
-
-    synchronized void updateDownloadedRange(long currentPosition, long newPosition) {
-	    for (Range range : this.missingRanges) {
-	        if (range.getStart() == currentPosition) {
-	        	if (range.getEnd() == newPosition - 1) {
-	        		// range is unique
-	        		this.missingRanges.remove(range);
-	        	} else {
-		            range.setStart(newPosition);
-		            this.bytesDownloaded += newPosition - currentPosition;
-	        	}
-	        	break;
-	        }
-		}
-        saveToFile();
-    }
-
-    synchronized private void saveToFile() {
-        File file = new File(this.filenameWithoutExtension + ".meta" + (this.fileCounter.get() ? "0" : "1"));
-        ObjectOutputStream objectOutputStream = null;
-        try {
-            objectOutputStream = new ObjectOutputStream(new FileOutputStream(file));
-            objectOutputStream.writeObject(this.missingRanges);
-            objectOutputStream.flush();
-            this.fileCounter.set(!this.fileCounter.get());
-        } catch (FileNotFoundException e) {
-            System.err.println("DownloadableMetadata: FileNotFoundException occurred");
-            IdcDm.exitWithFailure();
+
+    /**
+     * Hashes the bytes of a chunk after they were written, before they are marked as downloaded
+     */
+    void updateChecksums(long offset, ByteBuffer data) throws IOException {
+        try {
+            checksums.update(offset, data);
         } catch (IOException e) {
-        	System.err.println("DownloadableMetadata: IOException occurred during saving file");
-        	IdcDm.exitWithFailure();
-        } finally {
-            if (objectOutputStream != null) {
-                try {
-                    objectOutputStream.close();
-                } catch (IOException ex) {
-                    // ignore
-                }
+            System.err.println("DownloadableMetadata: IOException occurred during saving file");
+            throw e;
+        }
+    }
+
+    /**
+     * Marks parts taken by takeMissingParts as downloaded, after they were written and hashed
+     */
+    void updateDownloadedParts(PartBuffer parts) throws IOException {
+        lock.lock();
+        try {
+            this.writingParts.remove(parts);
+            for (int i = 0; i < parts.size(); i++) {
+                this.bytesDownloaded += this.missingRanges.remove(parts.start(i), parts.end(i));
+            }
+            if (this.streamWindow > 0) {
+                prefixWritten.signalAll();
+                rangeReturned.signalAll(); // the window may have moved
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // another writer may write a checkpoint without these parts first, replaying them again does no harm
+        journalLock.lock();
+        try {
+            for (int i = 0; i < parts.size(); i++) {
+                journal.append(parts.start(i), parts.end(i));
             }
+            if (journal.shouldCompact()) {
+                journal.writeCheckpoint(snapshotMissingRanges());
+            }
+        } catch (IOException e) {
+            System.err.println("DownloadableMetadata: IOException occurred during saving file");
+            throw e;
+        } finally {
+            journalLock.unlock();
+        }
+    }
 
+    private long[] snapshotMissingRanges() {
+        lock.lock();
+        try {
+            return this.missingRanges.toArray();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void saveCheckpoint() throws IOException {
+        journalLock.lock();
+        try {
+            try {
+                journal.writeCheckpoint(snapshotMissingRanges());
+            } catch (IOException e) {
+            	System.err.println("DownloadableMetadata: IOException occurred during saving file");
+            	throw e;
+            }
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    /**
+     * @param dataSync forces the downloaded file to the storage device, used before the journal is forced
+     */
+    void setDataSync(Flushable dataSync) {
+        journal.setDataSync(() -> {
+            dataSync.flush();
+            checksums.force(); // the checksums of the blocks the journal marks as downloaded
+        });
+    }
+
+    /**
+     * Persists all pending updates, regardless of the durability policy
+     */
+    void flush() throws IOException {
+        journalLock.lock();
+        try {
+            try {
+                journal.close();
+                checksums.close();
+            } catch (IOException e) {
+                System.err.println("DownloadableMetadata: IOException occurred during saving file");
+                throw e;
+            }
+        } finally {
+            journalLock.unlock();
         }
     }
 
     public void cleanUpMetadata() {
-        File file0 = new File(this.filenameWithoutExtension + ".meta0");
-        file0.delete();
-        File file1 = new File(this.filenameWithoutExtension + ".meta1");
-        file1.delete();
+        journal.delete();
+        checksums.delete();
     }
 }
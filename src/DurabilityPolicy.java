@@ -0,0 +1,35 @@
+/**
+ * Decides how often the RangeJournal persists the downloaded ranges.
+ *
+ * Pending journal records are written out once flushBytes bytes of the file were downloaded or flushMillis passed
+ * since the last write, whatever comes first. Everything downloaded after that is downloaded again after a crash.
+ */
+class DurabilityPolicy {
+
+    private final long flushBytes;
+
+    private final long flushMillis;
+
+    private final boolean fsync; // force the file and the journal to the storage device on every flush
+
+    private final int compactRecords; // number of journal records after which a new checkpoint is written
+
+    DurabilityPolicy(long flushBytes, long flushMillis, boolean fsync, int compactRecords) {
+        this.flushBytes = flushBytes;
+        this.flushMillis = flushMillis;
+        this.fsync = fsync;
+        this.compactRecords = compactRecords;
+    }
+
+    boolean shouldFlush(long pendingBytes, long millisSinceFlush) {
+        return pendingBytes >= flushBytes || millisSinceFlush >= flushMillis;
+    }
+
+    boolean isFsync() {
+        return fsync;
+    }
+
+    int getCompactRecords() {
+        return compactRecords;
+    }
+}
@@ -0,0 +1,41 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The failures a download may still have before it fails, shared by its probes and range getters
+ */
+class ErrorBudget {
+
+    private final RetryPolicy retryPolicy;
+
+    private final AtomicInteger left;
+
+    ErrorBudget(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        this.left = new AtomicInteger(retryPolicy.getBudget());
+    }
+
+    /**
+     * Takes one failure from the budget
+     *
+     * @return false if the budget is used up, the download fails
+     */
+    boolean spend() {
+        return left.decrementAndGet() >= 0;
+    }
+
+    /**
+     * Gives one failure back after a range was downloaded, up to the whole budget
+     */
+    void refill() {
+        left.updateAndGet(value -> value < 0 ? value : Math.min(retryPolicy.getBudget(), value + 1));
+    }
+
+    /**
+     * Waits before the next attempt of a connection
+     *
+     * @param failures failures of the connection in a row
+     */
+    void backoff(int failures) throws InterruptedException {
+        Thread.sleep(retryPolicy.backoffMillis(failures));
+    }
+}
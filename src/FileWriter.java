@@ -1,54 +1,216 @@
-import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.concurrent.BlockingQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class takes chunks from the queue, writes them to disk and updates the file's metadata.
  *
+ * The queue is shared by all downloads, every chunk refers to the DownloadFile it is written to. The FileWriter runs
+ * until it takes a finished marker without a file. There may be several FileWriters, each with the queue of its
+ * stripes of the files (see ChunkQueues), which write to the same files at the same time.
+ *
+ * The chunks of a range follow each other in the file, but in the queue they are interleaved with the chunks of the
+ * other ranges. The FileWriter copies each chunk to the end of the run of chunks it continues, and gives the chunk back
+ * to the ChunkPool right away. The bytes of the chunks count against the budget of the ChunkQueues until the run is
+ * written. A run is written with one write and marked as downloaded with one update of the metadata when it reaches
+ * coalesceBytes, when it is older than coalesceMillis, or when its file is finished. So a downloaded byte waits at most
+ * coalesceMillis (plus the time of the writes before it) until it is written.
+ *
  * NOTE: make sure that the file interface you choose writes every update to the file's content or metadata
  *       synchronously to the underlying storage device.
  */
 public class FileWriter implements Runnable {
 
-    private final BlockingQueue<Chunk> chunkQueue;
-    private DownloadableMetadata downloadableMetadata;
+    private static final int MAX_RUNS = 32; // the oldest run is written when one more range needs a run
+
+    private static final int MAX_IDLE_RUNS = 4; // the buffers of more written runs are dropped
+
+    private final ChunkQueues chunkQueues;
+    private final int writer; // the index of the queue of this writer
+    private final ChunkPool chunkPool;
+    private final Metrics metrics;
+    private final int coalesceBytes; // chunks are written as they are if this is not more than a chunk
+    private final long coalesceNanos;
+
+    /* the runs which are being gathered, oldest first */
+    private final List<Run> runs = new ArrayList<>();
+
+    /* the buffers of written runs, for the next runs */
+    private final Deque<Chunk> idleRuns = new ArrayDeque<>();
+
+    /* the missing parts of the chunk being written, reused for every chunk */
+    private final PartBuffer missingParts = new PartBuffer();
+
+    /**
+     * Contiguous chunks of a file, copied into one buffer
+     */
+    private static final class Run {
+
+        final Chunk chunk; // its buffer holds the chunks from position 0
+
+        final DownloadFile file;
+
+        final long offset;
+
+        final long started; // time of the first chunk
 
-    public FileWriter(DownloadableMetadata downloadableMetadata, BlockingQueue<Chunk> chunkQueue) {
-        this.chunkQueue = chunkQueue;
-        this.downloadableMetadata = downloadableMetadata;
+        Run(Chunk chunk, DownloadFile file, long offset, long started) {
+            this.chunk = chunk;
+            this.file = file;
+            this.offset = offset;
+            this.started = started;
+        }
+
+        long end() {
+            return offset + chunk.getBuffer().position();
+        }
     }
 
-    private void writeChunks() throws IOException, InterruptedException {
-        File file = new File(downloadableMetadata.getFilenameWithExtension());
-        RandomAccessFile downloadFile = new RandomAccessFile(file, "rw");
+    /**
+     * @param writer the index of the queue of this writer
+     * @param coalesceBytes size of the runs of contiguous chunks which are written at once
+     * @param coalesceMillis time after which a run is written even if it is not full
+     */
+    public FileWriter(ChunkQueues chunkQueues, int writer, ChunkPool chunkPool, Metrics metrics, int coalesceBytes,
+                      long coalesceMillis) {
+        this.chunkQueues = chunkQueues;
+        this.writer = writer;
+        this.chunkPool = chunkPool;
+        this.metrics = metrics;
+        this.coalesceBytes = coalesceBytes;
+        this.coalesceNanos = TimeUnit.MILLISECONDS.toNanos(coalesceMillis);
+    }
 
+    private void writeChunks() throws InterruptedException {
         while (true) {
-            final Chunk chunk = chunkQueue.take();
+            // wait for the next chunk at most until the oldest run is due
+            final Chunk chunk = runs.isEmpty() ? chunkQueues.take(writer) : chunkQueues.poll(writer,
+                    runs.get(0).started + coalesceNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (chunk != null) {
+                final DownloadFile file = chunk.getFile();
 
-            if (chunk.isFinishedMarker()) break;
+                if (chunk.isFinishedMarker()) {
+                    writeRuns(file);
+                    if (file == null) break;
+                    if (file.writerFinished()) { // the other writers are done with the file as well
+                        close(file);
+                    }
+                    continue;
+                }
 
-            long pointerBefore = chunk.getOffset();
+                if (coalesceBytes <= chunk.getSize()) {
+                    write(chunk);
+                    chunkQueues.written(chunk.getSize());
+                    chunkPool.release(chunk);
+                } else {
+                    gather(chunk);
+                }
+            }
 
-            downloadFile.seek(pointerBefore); // set the pointer to the end of the last data chunk
-            downloadFile.write(chunk.getData());
+            // runs are also written on time while the queue never runs empty
+            final long now = System.nanoTime();
+            while (!runs.isEmpty() && now - runs.get(0).started >= coalesceNanos) {
+                writeRun(runs.get(0));
+            }
+            // the runs hold the budget which the getters wait for, e.g. when the budget is smaller than the runs
+            if (!runs.isEmpty() && chunkQueues.isStarved(writer)) {
+                writeRun(runs.get(0));
+            }
+        }
+    }
 
-            long pointerAfter = downloadFile.getFilePointer();
-            downloadableMetadata.updateDownloadedRange(pointerBefore, pointerAfter);
+    /**
+     * Copies the chunk to the end of the run it continues, or to a new run, and gives the chunk back to the pool
+     */
+    private void gather(Chunk chunk) {
+        final DownloadFile file = chunk.getFile();
+        Run run = null;
+        for (Run candidate : runs) {
+            if (candidate.file == file && candidate.end() == chunk.getOffset()) {
+                run = candidate;
+                break;
+            }
+        }
+        if (run != null && run.chunk.getBuffer().remaining() < chunk.getSize()) {
+            writeRun(run);
+            run = null;
+        }
+        if (run == null) {
+            if (runs.size() == MAX_RUNS) {
+                writeRun(runs.get(0));
+            }
+            run = new Run(idleRun(), file, chunk.getOffset(), System.nanoTime());
+            runs.add(run);
+        }
+
+        run.chunk.getBuffer().put(chunk.getBuffer());
+        chunkPool.release(chunk);
+        if (!run.chunk.getBuffer().hasRemaining()) {
+            writeRun(run);
+        }
+    }
+
+    private Chunk idleRun() {
+        final Chunk chunk = idleRuns.poll();
+        if (chunk != null) {
+            return chunk;
+        }
+        return new Chunk(chunkPool.isDirect()
+                ? ByteBuffer.allocateDirect(coalesceBytes) : ByteBuffer.allocate(coalesceBytes));
+    }
+
+    /**
+     * Writes the runs of a file, or all runs if the file is null
+     */
+    private void writeRuns(DownloadFile file) {
+        for (Run run : new ArrayList<>(runs)) {
+            if (file == null || run.file == file) {
+                writeRun(run);
+            }
+        }
+    }
+
+    private void writeRun(Run run) {
+        runs.remove(run);
+        run.chunk.fill(run.file, run.offset, run.chunk.getBuffer().position());
+        write(run.chunk);
+        chunkQueues.written(run.chunk.getSize());
+        run.chunk.reset();
+        if (idleRuns.size() < MAX_IDLE_RUNS) {
+            idleRuns.push(run.chunk);
+        }
+    }
+
+    private void write(Chunk chunk) {
+        final long start = System.nanoTime();
+        try {
+            chunk.getFile().write(chunk, missingParts);
+            metrics.chunkWritten(System.nanoTime() - start);
+        } catch (IOException e) {
+            System.err.println("FileWriter: IoException occurred.");
+            chunk.getFile().fail();
+        }
+    }
+
+    private static void close(DownloadFile file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            System.err.println("FileWriter: IoException occurred.");
+            file.fail();
         }
-        downloadFile.close();
     }
 
     @Override
     public void run() {
         try {
             this.writeChunks();
-        } catch (IOException e) {
-            System.err.println("FileWriter: IoException occurred.");
-            IdcDm.exitWithFailure();
         } catch (InterruptedException e) {
             System.err.println("FileWriter: InterruptedException occurred.");
-            IdcDm.exitWithFailure();
         }
     }
 }
@@ -1,15 +1,25 @@
-import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.concurrent.BlockingQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 
 /**
  * A runnable class which downloads a given url.
- * It reads CHUNK_SIZE at a time and writs it into a BlockingQueue.
+ * It keeps downloading the ranges it gets from the DownloadableMetadata until none are left.
+ * It reads CHUNK_SIZE at a time into a chunk borrowed from the ChunkPool and writs it into the ChunkQueues, which
+ * hold it back while the FileWriters fall behind.
  * It supports downloading a range of data, and limiting the download rate using a token bucket.
+ *
+ * All ranges are requested on one persistent HttpConnection to a mirror, which is only reopened after a failure, when
+ * the server closes it, or when the mirror scores far below the others; the mirror is picked anew for every
+ * connection. When the connection becomes far slower than the best mirror in the middle of a range, the rest of the
+ * range goes back to the metadata. Shortly before the end of a range the next range is already requested on the
+ * connection (pipelining), if the server keeps the connection alive.
  */
-public class HTTPRangeGetter implements Runnable {
+public class HTTPRangeGetter implements RangeGetter {
 
     static final int CHUNK_SIZE = 4096; // we read in chunks of 4kb from the stream and write it to the file
 
@@ -17,69 +27,309 @@ public class HTTPRangeGetter implements Runnable {
 
     private static final int READ_TIMEOUT = 2000; // timemout during reading from a stream in ms
 
-    private static final String HTTP_GET = "GET"; // get method for the http request
+    private static final int RANGE_ATTEMPTS = 3; // a range goes back to the metadata after this many failures in a row
 
-    private final URL url;
+    /* the throughput of a response is compared with the mirrors after this much time spent reading it */
+    static final long MIRROR_CHECK_NANOS = 1_000_000_000L;
 
-    private final BlockingQueue<Chunk> outQueue;
+    /* the next range is requested when less than this is left of the current one */
+    private static final long PIPELINE_THRESHOLD = 64 * 1024;
 
-    private final Range range;
+    /* when a range was stolen, the rest of its response is read and dropped if it is at most this long,
+     * otherwise the connection is closed */
+    private static final long SKIP_LIMIT = 64 * 1024;
 
-    private TokenBucket tokenBucket;
+    private final MirrorSet mirrors;
+
+    private final ChunkQueues outQueue;
+
+    private final DownloadableMetadata downloadableMetadata;
+
+    private final DownloadFile downloadFile;
+
+    private final ChunkPool chunkPool;
+
+    private final TokenBucket tokenBucket;
+
+    private final HttpStatistics httpStatistics;
+
+    private final WorkerMetrics metrics;
+
+    private final ErrorBudget errorBudget; // of the download, shared with its other getters
+
+    private boolean pipelining; // false after a failure with a pipelined request
+
+    private HttpConnection connection;
+
+    private Mirror mirror; // the mirror of the connection, or of the last connection
+
+    private Range pipelinedRange; // the range requested behind the current one
+
+    private volatile boolean retired; // set to stop after the current range
 
     public HTTPRangeGetter(
-            URL url,
-            Range range,
-            BlockingQueue<Chunk> outQueue,
-            TokenBucket tokenBucket) {
-        this.url = url;
-        this.range = range;
+            MirrorSet mirrors,
+            DownloadableMetadata downloadableMetadata,
+            DownloadFile downloadFile,
+            ChunkQueues outQueue,
+            ChunkPool chunkPool,
+            TokenBucket tokenBucket,
+            HttpStatistics httpStatistics,
+            WorkerMetrics metrics,
+            ErrorBudget errorBudget,
+            boolean pipelining) {
+        this.mirrors = mirrors;
+        this.downloadableMetadata = downloadableMetadata;
+        this.downloadFile = downloadFile;
         this.outQueue = outQueue;
+        this.chunkPool = chunkPool;
         this.tokenBucket = tokenBucket;
+        this.httpStatistics = httpStatistics;
+        this.metrics = metrics;
+        this.errorBudget = errorBudget;
+        this.pipelining = pipelining;
     }
 
-    private void downloadRange(Range range) throws IOException {
-        final HttpURLConnection httpURLConnection = (HttpURLConnection) url.openConnection();
+    /**
+     * @param requested true if the range was already requested on the connection
+     * @return false if the mirror stalled and the connection was closed before the end of the range
+     */
+    private boolean downloadRange(Range range, boolean requested) throws IOException, InterruptedException {
+        // a retried or hedged range is requested from its position, where it broke off or the other getter has reached
+        final long start = requested ? range.getStart() : range.getPosition();
+        long sent = 0; // when the request was written, the connection setup is not part of the latency
+        if (!requested) {
+            if (range.isDone()) return true; // the other getter finished the hedged range meanwhile
 
-        httpURLConnection.setRequestMethod(HTTP_GET);
-        httpURLConnection.setRequestProperty("Range", "bytes=" + range.getStart() + "-" + range.getEnd());
-        httpURLConnection.setConnectTimeout(CONNECT_TIMEOUT);
-        httpURLConnection.setReadTimeout(READ_TIMEOUT);
+            if (connection == null) {
+                openConnection();
+            }
+            sent = System.nanoTime();
+            connection.sendRangeRequest(start, range.getEnd());
+        }
 
-        int responseCode = httpURLConnection.getResponseCode();
+        int responseCode;
+        try {
+            responseCode = connection.readResponse();
+        } catch (EOFException e) {
+            if (!connection.isReused()) throw e;
+            // the server closed the persistent connection before it answered, the request is sent again
+            metrics.retried();
+            closeConnection();
+            openConnection();
+            sent = System.nanoTime();
+            connection.sendRangeRequest(start, range.getEnd());
+            responseCode = connection.readResponse();
+        }
+
+        if (!requested) { // a pipelined request was sent while the one before it was answered
+            downloadableMetadata.latencyMeasured(System.nanoTime() - sent);
+        }
 
         if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
             System.err.println("HTTPRangeGetter: Unexpected HTTP Status Response.");
-            range.setInUse(false);
-            return;
+            throw new IOException("Unexpected HTTP status " + responseCode);
         }
 
-        final BufferedInputStream inputStream = new BufferedInputStream(httpURLConnection.getInputStream());
+        final InputStream inputStream = connection.getBody();
+        final ReadableByteChannel inputChannel = Channels.newChannel(inputStream); // only used for direct buffers
 
-        byte[] buffer = new byte[CHUNK_SIZE];
         int bytesRead;
-        long offset = range.getStart();
+        long offset = start;
+        long readNanos = 0; // time spent reading since the last check of the mirror
+        long readBytes = 0;
+
+        while (true) {
+            final Chunk chunk = chunkPool.borrow();
+            final long readStart = System.nanoTime();
+            try {
+                bytesRead = read(inputStream, inputChannel, chunk.getBuffer());
+            } catch (IOException e) {
+                chunkPool.release(chunk);
+                throw e;
+            }
+            readNanos += System.nanoTime() - readStart;
+            readBytes += Math.max(bytesRead, 0); // skipped bytes were read from the mirror as well
+            int skipped = 0;
+            int length = 0;
+            if (bytesRead > 0) {
+                synchronized (range) { // the other getter of a hedged range may have handed over these bytes
+                    skipped = range.behind(offset, bytesRead);
+                    length = range.advance(bytesRead - skipped);
+                }
+            }
+            offset += skipped;
+            if (length == 0) {
+                chunkPool.release(chunk);
+                // end of the stream, or another getter has stolen or downloaded the rest of the range
+                if (skipped == 0 || range.isDone()) break;
+                // else behind the other getter, which may still fail, and the mirror is checked as well
+            } else {
+                if (skipped > 0) {
+                    chunk.getBuffer().position(skipped).limit(skipped + length);
+                    chunk.getBuffer().compact();
+                }
+                takeTokens(length);
+                chunk.fill(downloadFile, offset, length);
+                outQueue.put(chunk);
+                metrics.received(length);
+                offset += length;
 
-        while ((bytesRead = inputStream.read(buffer, 0, CHUNK_SIZE)) != -1) {
-            tokenBucket.take(CHUNK_SIZE);
-            final Chunk chunk = new Chunk(buffer, offset, bytesRead);
-            outQueue.add(chunk);
-            offset += bytesRead;
+                if (range.getEnd() - offset < PIPELINE_THRESHOLD) {
+                    requestNextRange();
+                }
+            }
+            if (readNanos >= MIRROR_CHECK_NANOS) {
+                double throughput = readBytes * 1e9 / readNanos;
+                if (offset <= range.getEnd() && mirrors.isStalled(mirror, throughput)) {
+                    mirror.rangeLeft(offset - start, throughput);
+                    closeConnection();
+                    return false;
+                }
+                readNanos = 0;
+                readBytes = 0;
+            }
         }
 
-        inputStream.close();
-        httpURLConnection.disconnect();
+        if (range.getPosition() <= range.getEnd()) {
+            throw new IOException("Stream ended before the end of the range");
+        }
+        if (bytesRead != -1 && (offset <= range.getEnd() // the other getter of the hedged range was faster
+                || !connection.skipBody(SKIP_LIMIT))) { // the range was stolen
+            closeConnection();
+        } else if (!connection.isReusable()) {
+            closeConnection();
+        }
+        return true;
+    }
+
+    private void takeTokens(int length) throws InterruptedException {
+        if (!tokenBucket.isLimited()) return;
+
+        final long start = System.nanoTime();
+        tokenBucket.take(length);
+        metrics.waited(System.nanoTime() - start);
+    }
+
+    private void openConnection() throws IOException {
+        mirror = mirrors.pick();
+        connection = new HttpConnection(mirror.getUrl(), CONNECT_TIMEOUT, READ_TIMEOUT, httpStatistics);
+    }
+
+    /**
+     * Pipelines the request of the next missing range behind the current one, if the server allows it
+     */
+    private void requestNextRange() throws IOException {
+        if (!pipelining || retired || pipelinedRange != null || !connection.canPipeline()) return;
+
+        pipelinedRange = downloadableMetadata.claimMissingRange();
+        if (pipelinedRange != null) {
+            connection.sendRangeRequest(pipelinedRange.getStart(), pipelinedRange.getEnd());
+        }
+    }
+
+    /**
+     * Closes the connection, a range which was pipelined on it goes back to the metadata
+     */
+    private void closeConnection() {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // closed anyway
+            }
+            connection = null;
+        }
+        if (pipelinedRange != null) {
+            downloadableMetadata.releaseRange(pipelinedRange);
+            pipelinedRange = null;
+        }
+    }
+
+    /**
+     * Reads at most CHUNK_SIZE bytes into the empty buffer
+     *
+     * @return the number of bytes read, or -1 at the end of the stream
+     */
+    private static int read(InputStream inputStream, ReadableByteChannel inputChannel, ByteBuffer buffer)
+            throws IOException {
+        if (buffer.hasArray()) {
+            return inputStream.read(buffer.array(), buffer.arrayOffset(), CHUNK_SIZE);
+        }
+        buffer.limit(CHUNK_SIZE);
+        return inputChannel.read(buffer);
+    }
+
+    @Override
+    public void retire() {
+        this.retired = true;
     }
 
     @Override
     public void run() {
+        int failures = 0; // of the connections of this getter in a row
+        int rangeFailures = 0; // of the current range in a row
+        Range range = null; // a failed range is retried from its position, where it broke off
         try {
-            this.downloadRange(this.range);
-        } catch (IOException e) {
-        	// If a worker fails, we have the pool that will start another thread, taking over the range
-        	range.setInUse(false);
+            // take the next missing range or steal the tail of another getter's as soon as a range is done
+            while (!retired) {
+                boolean requested = false;
+                if (range == null) {
+                    requested = pipelinedRange != null;
+                    range = requested ? pipelinedRange : downloadableMetadata.getMissingRange();
+                    pipelinedRange = null;
+                    rangeFailures = 0;
+                    if (range == null) break;
+                }
+
+                final long start = System.nanoTime();
+                try {
+                    if (!this.downloadRange(range, requested)) {
+                        // the rest goes back to the metadata, for a getter on a better mirror
+                        downloadableMetadata.releaseRange(range);
+                        range = null;
+                        continue;
+                    }
+                    downloadableMetadata.finishRange(range);
+                    failures = 0;
+                    errorBudget.refill();
+                    if (mirror != null) { // null if the other getter finished a hedged range before it was requested
+                        mirror.rangeDownloaded(range.getPosition() - range.getStart(), System.nanoTime() - start);
+                    }
+                    range = null;
+                    if (connection != null && mirrors.shouldLeave(mirror)) {
+                        closeConnection(); // the next range is downloaded from a better mirror
+                    }
+                } catch (IOException e) {
+                    if (pipelinedRange != null) {
+                        pipelining = false; // maybe the server does not cope with pipelined requests
+                    }
+                    if (mirror != null) {
+                        mirror.rangeFailed(range.getPosition() - range.getStart());
+                    }
+                    closeConnection();
+                    metrics.retried();
+                    if (!errorBudget.spend()) {
+                        System.err.println("HTTPRangeGetter: giving up, the download failed too often.");
+                        downloadableMetadata.abort();
+                        return;
+                    }
+                    if (++rangeFailures == RANGE_ATTEMPTS) {
+                        // the range goes back to the metadata, so that another getter takes it over
+                        downloadableMetadata.releaseRange(range);
+                        range = null;
+                    }
+                    errorBudget.backoff(++failures); // on a new connection, maybe to another mirror
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped while waiting for a range or before a retry
+        } finally {
+            if (range != null) {
+                downloadableMetadata.releaseRange(range);
+            }
+            closeConnection();
+            metrics.ended();
         }
     }
-
-
 }
@@ -0,0 +1,92 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds with power-of-two buckets.
+ *
+ * Recording is a few atomic increments and no allocation, so it can be done for every chunk. The values are taken
+ * out per sampling interval with drain(), percentiles are the upper bound of their bucket, so they are exact up to a
+ * factor of two.
+ */
+class Histogram {
+
+    private static final int BUCKETS = 64; // bucket i counts the values from 2^i to 2^(i+1) - 1
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong total = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+        buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(Math.max(1, nanos)));
+        total.addAndGet(nanos);
+        max.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * Takes the values recorded since the last call
+     */
+    Snapshot drain() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.getAndSet(i, 0);
+        }
+        return new Snapshot(counts, total.getAndSet(0), max.getAndSet(0));
+    }
+
+    /**
+     * The values of one sampling interval
+     */
+    static final class Snapshot {
+
+        static final Snapshot EMPTY = new Snapshot(new long[BUCKETS], 0, 0);
+
+        private final long[] counts;
+
+        private final long count;
+
+        private final long total;
+
+        private final long max;
+
+        private Snapshot(long[] counts, long total, long max) {
+            this.counts = counts;
+            long count = 0;
+            for (long bucketCount : counts) {
+                count += bucketCount;
+            }
+            this.count = count;
+            this.total = total;
+            this.max = max;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        long getTotal() {
+            return total;
+        }
+
+        long getMax() {
+            return max;
+        }
+
+        /**
+         * @param fraction e.g. 0.99 for the 99th percentile
+         * @return the upper bound of the bucket of the percentile, at most the maximum, 0 without values
+         */
+        long percentile(double fraction) {
+            long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(max, i == 62 ? Long.MAX_VALUE : (2L << i) - 1);
+                }
+            }
+            return 0;
+        }
+    }
+}
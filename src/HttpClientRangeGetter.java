@@ -0,0 +1,356 @@
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A range getter on a java.net.http.HttpClient which is shared by all getters.
+ *
+ * Over HTTP/2 the client sends the ranges of all getters as streams of one connection per server, instead of a TCP
+ * connection per getter. The body of a range is received by a ChunkSubscriber, which never blocks the threads of the
+ * client: it only requests the next buffers from the stream after the getter has copied the previous ones into chunks
+ * and put them into the queue, so a full ChunkPool or an empty TokenBucket holds the stream back (through the flow
+ * control window of the stream) instead of piling up buffers. A stolen range cancels its stream, the connection and
+ * the other streams on it are not affected.
+ *
+ * The mirror is picked anew for every range. When the response becomes far slower than the best mirror in the middle
+ * of a range, the rest of the range goes back to the metadata.
+ */
+class HttpClientRangeGetter implements RangeGetter {
+
+    /* timeout until establishing a connection fails, unlike for a socket it includes the TLS handshake */
+    static final Duration CONNECT_TIMEOUT = Duration.ofMillis(2000);
+
+    private static final int READ_TIMEOUT = 2000; // timeout until the response or the next data of the body in ms
+
+    private static final int RANGE_ATTEMPTS = 3; // a range goes back to the metadata after this many failures in a row
+
+    private static final int CHUNK_SIZE = HTTPRangeGetter.CHUNK_SIZE;
+
+    private final HttpClient httpClient;
+
+    private final MirrorSet mirrors;
+
+    private final ChunkQueues outQueue;
+
+    private final DownloadableMetadata downloadableMetadata;
+
+    private final DownloadFile downloadFile;
+
+    private final ChunkPool chunkPool;
+
+    private final TokenBucket tokenBucket;
+
+    private final HttpStatistics httpStatistics;
+
+    private final WorkerMetrics metrics;
+
+    private final ErrorBudget errorBudget; // of the download, shared with its other getters
+
+    private volatile boolean retired; // set to stop after the current range
+
+    HttpClientRangeGetter(
+            HttpClient httpClient,
+            MirrorSet mirrors,
+            DownloadableMetadata downloadableMetadata,
+            DownloadFile downloadFile,
+            ChunkQueues outQueue,
+            ChunkPool chunkPool,
+            TokenBucket tokenBucket,
+            HttpStatistics httpStatistics,
+            WorkerMetrics metrics,
+            ErrorBudget errorBudget) {
+        this.httpClient = httpClient;
+        this.mirrors = mirrors;
+        this.downloadableMetadata = downloadableMetadata;
+        this.downloadFile = downloadFile;
+        this.outQueue = outQueue;
+        this.chunkPool = chunkPool;
+        this.tokenBucket = tokenBucket;
+        this.httpStatistics = httpStatistics;
+        this.metrics = metrics;
+        this.errorBudget = errorBudget;
+    }
+
+    /**
+     * @return false if the mirror stalled and the response was cancelled before the end of the range
+     */
+    private boolean downloadRange(Range range, Mirror mirror) throws IOException, InterruptedException {
+        // a retried or hedged range is requested from its position, where it broke off or the other getter has reached
+        final long start = range.getPosition();
+        if (range.isDone()) return true; // the other getter finished the hedged range meanwhile
+
+        final HttpRequest request;
+        try {
+            request = HttpRequest.newBuilder(mirror.getUrl().toURI())
+                    .header("Range", "bytes=" + start + "-" + range.getEnd())
+                    .timeout(Duration.ofMillis(READ_TIMEOUT))
+                    .GET()
+                    .build();
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+
+        final ChunkSubscriber subscriber = new ChunkSubscriber();
+        httpStatistics.requestSent();
+        final long sent = System.nanoTime();
+        final HttpResponse<Void> response = httpClient.send(request, responseInfo -> subscriber);
+        downloadableMetadata.latencyMeasured(System.nanoTime() - sent);
+        httpStatistics.responseReceived();
+        if (response.version() == HttpClient.Version.HTTP_2) {
+            httpStatistics.streamReceived();
+        }
+
+        Chunk chunk = null;
+        try {
+            if (response.statusCode() != HttpURLConnection.HTTP_PARTIAL) {
+                System.err.println("HttpClientRangeGetter: Unexpected HTTP Status Response.");
+                throw new IOException("Unexpected HTTP status " + response.statusCode());
+            }
+
+            long offset = start; // of the chunk
+            long receiveNanos = 0; // time spent waiting for the body since the last check of the mirror
+            long receivedBytes = 0;
+            List<ByteBuffer> buffers;
+            receive:
+            while (true) {
+                final long receiveStart = System.nanoTime();
+                buffers = subscriber.next();
+                receiveNanos += System.nanoTime() - receiveStart;
+                if (buffers == null) break;
+                for (ByteBuffer buffer : buffers) {
+                    receivedBytes += buffer.remaining();
+                }
+                for (ByteBuffer buffer : buffers) {
+                    while (buffer.hasRemaining()) {
+                        if (chunk == null) {
+                            chunk = chunkPool.borrow();
+                        }
+                        final ByteBuffer data = chunk.getBuffer();
+                        final long received = offset + data.position();
+                        final int readable = Math.min(buffer.remaining(), CHUNK_SIZE - data.position());
+                        int skipped;
+                        int length;
+                        synchronized (range) { // the other getter of a hedged range may have handed over these bytes
+                            skipped = range.behind(received, readable);
+                            length = range.advance(readable - skipped);
+                        }
+                        if (skipped > 0) {
+                            buffer.position(buffer.position() + skipped);
+                            if (data.position() > 0) { // the chunk ends before the skipped bytes
+                                send(chunk, offset);
+                                chunk = null;
+                            }
+                            offset = received + skipped;
+                        }
+                        if (length == 0) {
+                            if (skipped > 0 && !range.isDone()) continue; // behind the other getter
+                            // another getter has stolen or downloaded the rest of the range
+                            break receive;
+                        }
+                        if (chunk == null) {
+                            chunk = chunkPool.borrow();
+                        }
+                        chunk.getBuffer().put(buffer.slice().limit(length));
+                        buffer.position(buffer.position() + length);
+                        if (chunk.getBuffer().position() == CHUNK_SIZE) {
+                            offset = send(chunk, offset);
+                            chunk = null;
+                        }
+                    }
+                }
+                // the rest of a buffer is not held back while waiting for the next one
+                if (chunk != null && chunk.getBuffer().position() > 0) {
+                    offset = send(chunk, offset);
+                    chunk = null;
+                }
+                if (receiveNanos >= HTTPRangeGetter.MIRROR_CHECK_NANOS) {
+                    double throughput = receivedBytes * 1e9 / receiveNanos;
+                    if (range.getPosition() <= range.getEnd() && mirrors.isStalled(mirror, throughput)) {
+                        mirror.rangeLeft(offset - start, throughput);
+                        return false; // the response is cancelled below
+                    }
+                    receiveNanos = 0;
+                    receivedBytes = 0;
+                }
+                subscriber.request();
+            }
+            if (chunk != null && chunk.getBuffer().position() > 0) {
+                send(chunk, offset);
+                chunk = null;
+            }
+        } finally {
+            if (chunk != null) {
+                chunkPool.release(chunk);
+            }
+            subscriber.cancel(); // resets the stream if the body was not received completely
+        }
+
+        if (range.getPosition() <= range.getEnd()) {
+            throw new IOException("Stream ended before the end of the range");
+        }
+        return true;
+    }
+
+    /**
+     * Hands the filled chunk over to the FileWriter
+     *
+     * @return the offset of the next chunk
+     */
+    private long send(Chunk chunk, long offset) throws InterruptedException {
+        int length = chunk.getBuffer().position();
+        if (tokenBucket.isLimited()) {
+            final long start = System.nanoTime();
+            tokenBucket.take(length);
+            metrics.waited(System.nanoTime() - start);
+        }
+        chunk.fill(downloadFile, offset, length);
+        outQueue.put(chunk);
+        metrics.received(length);
+        return offset + length;
+    }
+
+    @Override
+    public void retire() {
+        this.retired = true;
+    }
+
+    @Override
+    public void run() {
+        int failures = 0; // of the requests of this getter in a row
+        int rangeFailures = 0; // of the current range in a row
+        Range range = null; // a failed range is retried from its position, where it broke off
+        try {
+            // take the next missing range or steal the tail of another getter's as soon as a range is done
+            while (!retired) {
+                if (range == null) {
+                    range = downloadableMetadata.getMissingRange();
+                    rangeFailures = 0;
+                    if (range == null) break;
+                }
+
+                final Mirror mirror = mirrors.pick();
+                final long start = System.nanoTime();
+                try {
+                    if (!this.downloadRange(range, mirror)) {
+                        // the rest goes back to the metadata, for a getter on a better mirror
+                        downloadableMetadata.releaseRange(range);
+                        range = null;
+                        continue;
+                    }
+                    downloadableMetadata.finishRange(range);
+                    failures = 0;
+                    errorBudget.refill();
+                    mirror.rangeDownloaded(range.getPosition() - range.getStart(), System.nanoTime() - start);
+                    range = null;
+                } catch (IOException e) {
+                    mirror.rangeFailed(range.getPosition() - range.getStart());
+                    metrics.retried();
+                    if (!errorBudget.spend()) {
+                        System.err.println("HttpClientRangeGetter: giving up, the download failed too often.");
+                        downloadableMetadata.abort();
+                        return;
+                    }
+                    if (++rangeFailures == RANGE_ATTEMPTS) {
+                        // the range goes back to the metadata, so that another getter takes it over
+                        downloadableMetadata.releaseRange(range);
+                        range = null;
+                    }
+                    errorBudget.backoff(++failures);
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped while waiting for a range or before a retry
+        } finally {
+            if (range != null) {
+                downloadableMetadata.releaseRange(range);
+            }
+            metrics.ended();
+        }
+    }
+
+    /**
+     * Receives the body of a range, one batch of buffers at a time.
+     *
+     * The client delivers a batch on one of its threads, the getter takes it with next() and requests the next batch
+     * with request() once it has handed the data on. The subscriber has at most one batch (and the end) queued.
+     */
+    private static class ChunkSubscriber implements HttpResponse.BodySubscriber<Void> {
+
+        private static final List<ByteBuffer> END = List.of(); // marks the end of the body, or an error
+
+        private final BlockingQueue<List<ByteBuffer>> received = new LinkedBlockingQueue<>();
+
+        private final CompletableFuture<Flow.Subscription> subscription = new CompletableFuture<>();
+
+        private volatile Throwable error;
+
+        @Override
+        public CompletionStage<Void> getBody() {
+            // the response is returned as soon as its headers are received, the body is taken with next()
+            return CompletableFuture.completedStage(null);
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription.complete(subscription);
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> buffers) {
+            received.add(buffers);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            received.add(END);
+        }
+
+        @Override
+        public void onComplete() {
+            received.add(END);
+        }
+
+        /**
+         * Waits for the next batch of buffers
+         *
+         * @return the buffers, or null at the end of the body
+         * @throws IOException if the body failed or no data arrived in time
+         */
+        List<ByteBuffer> next() throws IOException, InterruptedException {
+            List<ByteBuffer> buffers = received.poll(READ_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (buffers == null) {
+                throw new SocketTimeoutException("Read timed out");
+            }
+            if (buffers == END) {
+                if (error != null) {
+                    throw error instanceof IOException ? (IOException) error : new IOException(error);
+                }
+                return null;
+            }
+            return buffers;
+        }
+
+        void request() {
+            subscription.thenAccept(s -> s.request(1));
+        }
+
+        void cancel() {
+            subscription.thenAccept(Flow.Subscription::cancel);
+        }
+    }
+}
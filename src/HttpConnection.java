@@ -0,0 +1,330 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A persistent HTTP/1.1 connection to the server of a URL, owned by one HTTPRangeGetter.
+ *
+ * Range requests are sent one after the other on the same socket, so the TCP (and TLS) setup is paid once per
+ * connection instead of once per range. The next request may be sent before the response to the previous one is
+ * read (pipelining), the responses arrive in the order of the requests.
+ */
+class HttpConnection implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_HEADER_LINE = 8192;
+
+    private final URL url;
+
+    private final Socket socket;
+
+    private final InputStream in;
+
+    private final OutputStream out;
+
+    private final HttpStatistics statistics;
+
+    private int pendingResponses; // requests sent whose response is not read completely yet
+
+    private Body body; // body of the current response
+
+    private boolean keepAlive = true; // false once the server announced to close the connection
+
+    private int responses; // responses read on this connection
+
+    /**
+     * Opens a connection to the host of the url
+     *
+     * @param connectTimeout timeout until establishing a connection will fail in ms
+     * @param readTimeout timeout during reading from the connection in ms
+     */
+    HttpConnection(URL url, int connectTimeout, int readTimeout, HttpStatistics statistics) throws IOException {
+        this.url = url;
+        this.statistics = statistics;
+
+        boolean secure = "https".equalsIgnoreCase(url.getProtocol());
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+
+        Socket plainSocket = new Socket();
+        try {
+            plainSocket.connect(new InetSocketAddress(url.getHost(), port), connectTimeout);
+            plainSocket.setSoTimeout(readTimeout);
+            plainSocket.setTcpNoDelay(true);
+            if (secure) {
+                SSLSocket sslSocket = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+                        .createSocket(plainSocket, url.getHost(), port, true);
+                SSLParameters parameters = sslSocket.getSSLParameters();
+                parameters.setEndpointIdentificationAlgorithm("HTTPS"); // verify the host name
+                sslSocket.setSSLParameters(parameters);
+                sslSocket.startHandshake();
+                this.socket = sslSocket;
+            } else {
+                this.socket = plainSocket;
+            }
+        } catch (IOException e) {
+            plainSocket.close();
+            throw e;
+        }
+        this.in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        statistics.connectionOpened();
+    }
+
+    /**
+     * Sends a GET request for the bytes from start to end (inclusive)
+     */
+    void sendRangeRequest(long start, long end) throws IOException {
+        String file = url.getFile().isEmpty() ? "/" : url.getFile();
+        String host = url.getPort() == -1 ? url.getHost() : url.getHost() + ":" + url.getPort();
+        String request = "GET " + file + " HTTP/1.1\r\n"
+                + "Host: " + host + "\r\n"
+                + "Range: bytes=" + start + "-" + end + "\r\n"
+                + "User-Agent: IdcDm\r\n"
+                + "Accept-Encoding: identity\r\n"
+                + "\r\n";
+        out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+        if (pendingResponses > 0) {
+            statistics.requestPipelined();
+        }
+        pendingResponses++;
+        statistics.requestSent();
+    }
+
+    /**
+     * Reads the status line and the headers of the next response, the body of the previous one must be read.
+     *
+     * @return the status code
+     */
+    int readResponse() throws IOException {
+        if (body != null && !body.isComplete()) {
+            throw new IllegalStateException("The body of the previous response is not read");
+        }
+        String statusLine = readLine();
+        String[] parts = statusLine.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/1.")) {
+            throw new IOException("Invalid status line: " + statusLine);
+        }
+        int status;
+        try {
+            status = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid status line: " + statusLine);
+        }
+        boolean http10 = parts[0].equals("HTTP/1.0");
+
+        long contentLength = -1;
+        boolean chunked = false;
+        String connection = null;
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) continue;
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                contentLength = parseLength(value, 10, "Content-Length");
+            } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                chunked = value.toLowerCase().contains("chunked");
+            } else if (name.equalsIgnoreCase("Connection")) {
+                connection = value.toLowerCase();
+            }
+        }
+
+        if (connection != null && connection.contains("close") || http10 && !"keep-alive".equals(connection)) {
+            keepAlive = false;
+        }
+        if (chunked) {
+            body = new ChunkedBody();
+        } else if (contentLength >= 0) {
+            body = new FixedLengthBody(contentLength);
+        } else {
+            keepAlive = false; // the body ends when the server closes the connection
+            body = new FixedLengthBody(Long.MAX_VALUE);
+        }
+        statistics.responseReceived();
+        responses++;
+        return status;
+    }
+
+    /**
+     * The body of the current response, it ends (-1) with the response
+     */
+    InputStream getBody() {
+        return body;
+    }
+
+    /**
+     * Reads and discards the rest of the current body if it has at most limit bytes left.
+     *
+     * @return true if the body was read completely, false if too much was left
+     */
+    boolean skipBody(long limit) throws IOException {
+        if (body.remaining() > limit) return false;
+        byte[] buffer = new byte[4096];
+        while (body.read(buffer, 0, buffer.length) != -1) ;
+        return true;
+    }
+
+    /**
+     * @return true if further requests can be sent on this connection
+     */
+    boolean isReusable() {
+        return keepAlive && !socket.isClosed();
+    }
+
+    /**
+     * @return true if a response was read on this connection before, so the server may have closed it while it was idle
+     */
+    boolean isReused() {
+        return responses > 0;
+    }
+
+    /**
+     * @return true if the server keeps the connection open after the current response, so a request
+     *         can already be pipelined behind it
+     */
+    boolean canPipeline() {
+        return isReusable() && pendingResponses == 1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) throw new EOFException("Connection closed by the server");
+            if (line.length() == MAX_HEADER_LINE) throw new IOException("Header line too long");
+            line.append((char) b);
+        }
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') {
+            line.setLength(length - 1);
+        }
+        return line.toString();
+    }
+
+    /**
+     * Parses a length sent by the server, a malformed one fails the response like a broken connection
+     */
+    private static long parseLength(String value, int radix, String name) throws ProtocolException {
+        try {
+            long length = Long.parseLong(value, radix);
+            if (length >= 0) {
+                return length;
+            }
+        } catch (NumberFormatException e) {
+            // handled below
+        }
+        throw new ProtocolException("Invalid " + name + ": " + value);
+    }
+
+    private void responseComplete() {
+        pendingResponses--;
+    }
+
+    /**
+     * A body which ends with its response, without closing the connection
+     */
+    private abstract class Body extends InputStream {
+
+        abstract boolean isComplete();
+
+        /* bytes left in the body, Long.MAX_VALUE if unknown */
+        abstract long remaining();
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+    }
+
+    private class FixedLengthBody extends Body {
+
+        private long remaining;
+
+        FixedLengthBody(long length) {
+            this.remaining = length;
+            if (length == 0) responseComplete();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining == 0) return -1;
+            int bytesRead = in.read(buffer, offset, (int) Math.min(length, remaining));
+            if (bytesRead == -1) {
+                if (remaining != Long.MAX_VALUE) throw new EOFException("Connection closed during the body");
+                keepAlive = false;
+                remaining = 0;
+                responseComplete();
+                return -1;
+            }
+            if (remaining != Long.MAX_VALUE) {
+                remaining -= bytesRead;
+                if (remaining == 0) responseComplete();
+            }
+            return bytesRead;
+        }
+
+        @Override
+        boolean isComplete() {
+            return remaining == 0;
+        }
+
+        @Override
+        long remaining() {
+            return remaining;
+        }
+    }
+
+    private class ChunkedBody extends Body {
+
+        private long chunkRemaining; // bytes left in the current chunk
+
+        private boolean complete;
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (complete) return -1;
+            if (chunkRemaining == 0) {
+                String size = readLine();
+                int extension = size.indexOf(';');
+                chunkRemaining = parseLength((extension == -1 ? size : size.substring(0, extension)).trim(), 16,
+                        "chunk size");
+                if (chunkRemaining == 0) {
+                    while (!readLine().isEmpty()) ; // trailers
+                    complete = true;
+                    responseComplete();
+                    return -1;
+                }
+            }
+            int bytesRead = in.read(buffer, offset, (int) Math.min(length, chunkRemaining));
+            if (bytesRead == -1) throw new EOFException("Connection closed during the body");
+            chunkRemaining -= bytesRead;
+            if (chunkRemaining == 0) readLine(); // the line break after the chunk
+            return bytesRead;
+        }
+
+        @Override
+        boolean isComplete() {
+            return complete;
+        }
+
+        @Override
+        long remaining() {
+            return Long.MAX_VALUE;
+        }
+    }
+}
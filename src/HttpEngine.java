@@ -0,0 +1,33 @@
+/**
+ * The ways the range getters talk HTTP to the mirrors.
+ *
+ * - SOCKET: HTTPRangeGetter, a persistent (and pipelined) HTTP/1.1 connection per getter
+ * - HTTP_CLIENT: HttpClientRangeGetter, all getters share a java.net.http.HttpClient, which multiplexes their ranges
+ *                over one HTTP/2 connection per server, or falls back to HTTP/1.1 if the server does not offer HTTP/2
+ */
+enum HttpEngine {
+
+    SOCKET("socket"),
+
+    HTTP_CLIENT("httpclient");
+
+    private final String name;
+
+    HttpEngine(String name) {
+        this.name = name;
+    }
+
+    static HttpEngine fromName(String name) {
+        for (HttpEngine engine : values()) {
+            if (engine.name.equalsIgnoreCase(name)) {
+                return engine;
+            }
+        }
+        throw new IllegalArgumentException("Unknown HTTP engine: " + name);
+    }
+
+    @Override
+    public String toString() {
+        return this.name;
+    }
+}
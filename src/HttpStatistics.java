@@ -0,0 +1,64 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how the connections of the downloads are used, to see how well connections are reused or multiplexed
+ */
+class HttpStatistics {
+
+    private final AtomicLong connectionsOpened = new AtomicLong();
+
+    private final AtomicLong requestsSent = new AtomicLong();
+
+    private final AtomicLong requestsPipelined = new AtomicLong();
+
+    private final AtomicLong responsesReceived = new AtomicLong();
+
+    private final AtomicLong streamsReceived = new AtomicLong(); // responses received as HTTP/2 streams
+
+    void connectionOpened() {
+        connectionsOpened.incrementAndGet();
+    }
+
+    void requestSent() {
+        requestsSent.incrementAndGet();
+    }
+
+    void requestPipelined() {
+        requestsPipelined.incrementAndGet();
+    }
+
+    void responseReceived() {
+        responsesReceived.incrementAndGet();
+    }
+
+    void streamReceived() {
+        streamsReceived.incrementAndGet();
+    }
+
+    long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    long getRequestsSent() {
+        return requestsSent.get();
+    }
+
+    long getRequestsPipelined() {
+        return requestsPipelined.get();
+    }
+
+    long getResponsesReceived() {
+        return responsesReceived.get();
+    }
+
+    long getStreamsReceived() {
+        return streamsReceived.get();
+    }
+
+    @Override
+    public String toString() {
+        return "HttpStatistics connections: " + getConnectionsOpened() + " requests: " + getRequestsSent()
+                + " pipelined: " + getRequestsPipelined() + " responses: " + getResponsesReceived()
+                + " http/2 streams: " + getStreamsReceived();
+    }
+}
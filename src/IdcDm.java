@@ -1,165 +1,160 @@
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.MalformedURLException;
-import java.net.*;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 public class IdcDm {
 
-    public static AtomicBoolean downloadStopped = new AtomicBoolean(false);
-
     /**
      * Receive arguments from the command-line, provide some feedback and start the download.
+     * With -i the URLs are read from a file, one per line, and downloaded concurrently.
+     * With -Didc.stream=true the file is also written to stdout while it is downloaded, the messages go to stderr.
      *
      * @param args command-line arguments
      */
     public static void main(String[] args) {
-    	int numberOfWorkers = 1;
+    	Integer numberOfWorkers = 1; // null to adapt the number of connections to the throughput
         Long maxBytesPerSecond = null;
 
-        if (args.length < 1 || args.length > 3) {
-            System.err.printf("usage:\n\tjava IdcDm URL [MAX-CONCURRENT-CONNECTIONS] [MAX-DOWNLOAD-LIMIT]\n");
+        DownloadOptions options = null;
+        try {
+            options = new DownloadOptions(System.getProperties());
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+        }
+
+        final boolean batch = args.length > 0 && args[0].equals("-i");
+        if (batch) { // the remaining arguments are the same as for a single URL
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+
+        if (options == null || args.length < 1 || args.length > 3) {
+            System.err.printf("usage:\n\tjava [OPTIONS] IdcDm URL [MAX-CONCURRENT-CONNECTIONS|auto]"
+                    + " [MAX-DOWNLOAD-LIMIT]\n");
+            System.err.printf("\tjava [OPTIONS] IdcDm -i URL-LIST [MAX-CONCURRENT-CONNECTIONS|auto]"
+                    + " [MAX-DOWNLOAD-LIMIT]\n");
+            System.err.printf("options:\n\t-D%s=raf|channel|mmap\tway of writing to the file (default: channel)\n",
+                    DownloadOptions.WRITER_PROPERTY);
+            System.err.printf("\t-D%s=N\t\t\tnumber of pooled 4kb chunks (default: 4096)\n",
+                    DownloadOptions.POOL_CHUNKS_PROPERTY);
+            System.err.printf("\t-D%s=true|false\t\tuse direct buffers for the chunks (default: false)\n",
+                    DownloadOptions.POOL_DIRECT_PROPERTY);
+            System.err.printf("\t-D%s=N\t\tpersist progress after N downloaded bytes (default: 4mb)\n",
+                    DownloadOptions.JOURNAL_FLUSH_BYTES_PROPERTY);
+            System.err.printf("\t-D%s=N\t\tor after N milliseconds (default: 1000)\n",
+                    DownloadOptions.JOURNAL_FLUSH_MILLIS_PROPERTY);
+            System.err.printf("\t-D%s=true|false\t\tforce progress to the storage device (default: false)\n",
+                    DownloadOptions.JOURNAL_FSYNC_PROPERTY);
+            System.err.printf("\t-D%s=N\tcheckpoint after N journal records (default: 16384)\n",
+                    DownloadOptions.JOURNAL_COMPACT_RECORDS_PROPERTY);
+            System.err.printf("\t-D%s=true|false\tpipeline range requests on a connection (default: true)\n",
+                    DownloadOptions.HTTP_PIPELINING_PROPERTY);
+            System.err.printf("\t-D%s=socket|httpclient\tHTTP/1.1 sockets or a shared HTTP/2 client"
+                    + " (default: socket)\n",
+                    DownloadOptions.HTTP_ENGINE_PROPERTY);
+            System.err.printf("\t-D%s=N\t\tconnections to start auto mode with (default: 2)\n",
+                    DownloadOptions.CONNECTIONS_INITIAL_PROPERTY);
+            System.err.printf("\t-D%s=N\t\t\tmaximum connections of auto mode (default: 16)\n",
+                    DownloadOptions.CONNECTIONS_MAX_PROPERTY);
+            System.err.printf("\t-D%s=N\t\t\tlimit of all downloads in bytes per second (default: none)\n",
+                    DownloadOptions.LIMIT_GLOBAL_PROPERTY);
+            System.err.printf("\t-D%s=N\t\tlimit of each connection in bytes per second (default: none)\n",
+                    DownloadOptions.LIMIT_CONNECTION_PROPERTY);
+            System.err.printf("\t-D%s=N\t\tdownloads of a URL list at the same time (default: 4)\n",
+                    DownloadOptions.BATCH_PARALLEL_PROPERTY);
+            System.err.printf("\t-D%s=platform|virtual\tthreads of the connections (default: platform)\n",
+                    DownloadOptions.THREADS_PROPERTY);
+            System.err.printf("\t-D%s=N\t\t\tthreads writing to the files at the same time (default: 1)\n",
+                    DownloadOptions.WRITERS_PROPERTY);
+            System.err.printf("\t-D%s=none|sparse|full\tprepare the file before the download (default: sparse)\n",
+                    DownloadOptions.PREALLOCATE_PROPERTY);
+            System.err.printf("\t-D%s=N\t\tbytes waiting to be written at most, at least 4096 (default: 64mb)\n",
+                    DownloadOptions.QUEUE_BYTES_PROPERTY);
+            System.err.printf("\t-D%s=N\twrite runs of contiguous chunks of N bytes (default: 1mb)\n",
+                    DownloadOptions.COALESCE_BYTES_PROPERTY);
+            System.err.printf("\t-D%s=N\twrite a run after at most N milliseconds (default: 50)\n",
+                    DownloadOptions.COALESCE_MILLIS_PROPERTY);
+            System.err.printf("\t-D%s=N\t\thedge the slowest ranges when N bytes are missing (default: 4mb)\n",
+                    DownloadOptions.ENDGAME_BYTES_PROPERTY);
+            System.err.printf("\t-D%s=N\t\tfailures of a download before it fails (default: 64)\n",
+                    DownloadOptions.RETRY_BUDGET_PROPERTY);
+            System.err.printf("\t-D%s=N\tfirst wait after a failure in milliseconds (default: 250)\n",
+                    DownloadOptions.RETRY_BACKOFF_MILLIS_PROPERTY);
+            System.err.printf("\t-D%s=N\tlongest wait after a failure in milliseconds (default: 30000)\n",
+                    DownloadOptions.RETRY_MAX_BACKOFF_MILLIS_PROPERTY);
+            System.err.printf("\t-D%s=true|false\t\twrite the file to stdout while it is downloaded (default: false)\n",
+                    DownloadOptions.STREAM_PROPERTY);
+            System.err.printf("\t-D%s=N\t\tdownload at most N bytes ahead of the stream (default: 64mb)\n",
+                    DownloadOptions.STREAM_WINDOW_PROPERTY);
+            System.err.printf("\t-D%s=N\t\tsample the metrics every N milliseconds (default: 1000)\n",
+                    DownloadOptions.METRICS_INTERVAL_PROPERTY);
+            System.err.printf("\t-D%s=FILE|-\t\tappend the metrics as JSON lines to FILE or stderr (default: none)\n",
+                    DownloadOptions.METRICS_LOG_PROPERTY);
+            System.err.printf("\t-D%s=true|false\t\texpose the metrics as the MXBean idc:type=Metrics"
+                    + " (default: false)\n",
+                    DownloadOptions.METRICS_JMX_PROPERTY);
             System.exit(1);
         } else if (args.length >= 2) {
-            numberOfWorkers = Integer.parseInt(args[1]);
+            numberOfWorkers = args[1].equals("auto") ? null : Integer.parseInt(args[1]);
             if (args.length == 3)
                 maxBytesPerSecond = Long.parseLong(args[2]);
         }
 
-        String url = args[0];
-
-        System.err.printf("Downloading");
-        if (numberOfWorkers > 1)
-            System.err.printf(" using %d connections", numberOfWorkers);
-        if (maxBytesPerSecond != null)
-            System.err.printf(" limited to %d KBps", maxBytesPerSecond / 1000);
-        System.err.printf("...\n");
-
-        DownloadURL(url, numberOfWorkers, maxBytesPerSecond);
-    }
-
-    /**
-     * Initiate the file's metadata, and iterate over missing ranges. For each:
-     * 1. Setup the Queue, TokenBucket, DownloadableMetadata, FileWriter, RateLimiter, and a pool of HTTPRangeGetters
-     * 2. Join the HTTPRangeGetters, send finish marker to the Queue and terminate the TokenBucket
-     * 3. Join the FileWriter and RateLimiter
-     *
-     * Finally, print "Download succeeded/failed" and delete the metadata as needed.
-     *
-     * @param downloadTarget URL to download
-     * @param numberOfWorkers number of concurrent connections
-     * @param maxBytesPerSecond limit on download bytes-per-second
-     */
-    private static void DownloadURL(String downloadTarget, int numberOfWorkers, Long maxBytesPerSecond) {
-
-        final URL url = parseUrl(downloadTarget);
-        if (url == null) return;
-
-        Long size = getFileSize(url);
-        if (size == null) return;
-
-        // setup objects
-        final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(100000, true);
-        final TokenBucket tokenBucket = new TokenBucket();
-        final Thread rateLimiter = new Thread(new RateLimiter(tokenBucket, maxBytesPerSecond));
-        rateLimiter.start();
-        final DownloadableMetadata downloadableMetadata = new DownloadableMetadata(url, size);
-        final Thread fileWriter = new Thread(new FileWriter(downloadableMetadata, queue));
-        fileWriter.start();
-        final Thread downloadStatus = new Thread(new DownloadStatus(downloadableMetadata));
-        downloadStatus.start();
-
-        // setup download workers thread pool
-        final List<Range> missingRanges = downloadableMetadata.getMissingRanges();
-
-        while (missingRanges.size() != 0) {
-            ExecutorService executor = Executors.newFixedThreadPool(numberOfWorkers);
-
-            List<Callable<Object>> task = new ArrayList<>();
-            Range range;
-            // Find an unused range to give to a worker
-            for (int i = 0; i < numberOfWorkers; i++) {
-                range = downloadableMetadata.getMissingRange();
-                if (range == null) break;
-                task.add(Executors.callable(new HTTPRangeGetter(url, range, queue, tokenBucket)));
-            }
+        List<String> urls = new ArrayList<>();
+        if (batch) {
             try {
-                executor.invokeAll(task);
-                // check if there's Internet connection
-                final URLConnection conn = url.openConnection();
-                conn.connect();
-            } catch (InterruptedException e) {
-                IdcDm.downloadStopped.set(true);
-                System.err.println("Executor of workers: InterruptedException occurred");
-                executor.shutdown();
-                break;
+                for (String line : Files.readAllLines(Paths.get(args[0]))) {
+                    if (!line.isBlank() && !line.startsWith("#")) {
+                        urls.add(line.strip());
+                    }
+                }
             } catch (IOException e) {
-                IdcDm.downloadStopped.set(true);
-                System.err.println("Internet Connection lost");
-                executor.shutdown();
-                break;
-            } finally{
-                executor.shutdown();
+                System.err.println("Could not read the URL list.");
+                System.exit(1);
             }
-        }
-
-        // Stopping FileWriter
-        final Chunk finishedChunk = new Chunk(null, 0, 0);
-        finishedChunk.setAsFinishedMarker();
-        queue.add(finishedChunk);
-
-        // wait until the fileWriter has finished
-        try {
-            fileWriter.join();
-        } catch (InterruptedException e) {
-            IdcDm.exitWithFailure();
-        }
-        
-        tokenBucket.terminate();
-        
-        // wait until the rateLimiter has finished
-        try {
-			rateLimiter.join();
-		} catch (InterruptedException e) {
-			System.err.println("RateLimiter: InterruptedException occurred");
-			IdcDm.exitWithFailure();
-		}
-
-        // validate download
-        if (downloadableMetadata.getMissingRanges().size() == 0) {
-            // clean up metadata files
-            downloadableMetadata.cleanUpMetadata();
-            System.err.println("Download Succeeded.");
         } else {
-            System.err.println("Download Failed.");
+            urls.add(args[0]);
         }
 
-        // Stopping DownloadStatus
-        IdcDm.downloadStopped.set(true);
-    }
-    
-    public static void exitWithFailure() {
-    	System.err.println("Download Failed.");
-        System.exit(0);
-    }
-
-    private static Long getFileSize(URL url) {
-        try {
-            return url.openConnection().getContentLengthLong();
-        } catch (IOException e) {
-            System.out.println("Could not get Filesize.");
-            return null;
+        OutputStream streamOutput = null;
+        if (options.isStream()) {
+            if (batch) {
+                System.err.println("A URL list cannot be streamed.");
+                System.exit(1);
+            }
+            // unbuffered and without the PrintStream, which would swallow a closed pipe
+            streamOutput = new FileOutputStream(FileDescriptor.out);
+            System.setOut(System.err);
         }
-    }
 
-    private static URL parseUrl(String downloadTarget) {
+        System.err.printf("Downloading");
+        if (batch)
+            System.err.printf(" %d URLs, %d at a time,", urls.size(), options.getBatchParallel());
+        if (numberOfWorkers == null)
+            System.err.printf(" using up to %d connections", options.getMaxConnections());
+        else if (numberOfWorkers > 1)
+            System.err.printf(" using %d connections", numberOfWorkers);
+        if (maxBytesPerSecond != null)
+            System.err.printf(" limited to %d KBps", maxBytesPerSecond / 1000);
+        System.err.printf("...\n");
+
+        final DownloadManager downloadManager = new DownloadManager(numberOfWorkers, maxBytesPerSecond, options);
+        downloadManager.setStreamOutput(streamOutput);
         try {
-            return new URL(downloadTarget);
-        } catch (MalformedURLException e) {
-            System.out.println("The Url you entered is not valid.");
-            return null;
+            if (batch) {
+                downloadManager.downloadAll(urls);
+            } else {
+                downloadManager.download(urls.get(0), "", true);
+            }
+            downloadManager.close();
+        } catch (InterruptedException e) {
+            System.err.println("IdcDm: InterruptedException occurred");
+            System.exit(1);
         }
     }
 }
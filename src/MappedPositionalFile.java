@@ -0,0 +1,88 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes chunks by copying them into memory-mapped regions of the file.
+ *
+ * The file is mapped lazily in regions of REGION_SIZE bytes. Only the most recently used regions stay referenced,
+ * older ones are left to the garbage collector which unmaps them (the OS writes the pages back in any case).
+ * Several FileWriters copy into the regions at the same time, only looking up the regions is synchronized.
+ */
+class MappedPositionalFile implements PositionalFile {
+
+    static final long REGION_SIZE = 64L * 1024 * 1024; // 64mb per mapping
+
+    private static final int MAX_MAPPED_REGIONS = 16;
+
+    private final FileChannel fileChannel;
+
+    private final long fileSize;
+
+    /* region index -> mapping, in access order so that the eldest is the least recently used */
+    private final Map<Long, MappedByteBuffer> regions = new LinkedHashMap<Long, MappedByteBuffer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest) {
+            return size() > MAX_MAPPED_REGIONS;
+        }
+    };
+
+    MappedPositionalFile(File file, long fileSize) throws IOException {
+        this.fileChannel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.fileSize = fileSize;
+    }
+
+    @Override
+    public void write(Chunk chunk) throws IOException {
+        ByteBuffer buffer = chunk.getBuffer();
+        long position = chunk.getOffset();
+        if (position + buffer.remaining() > fileSize) {
+            throw new IOException("Chunk exceeds the file size: " + chunk);
+        }
+
+        while (buffer.hasRemaining()) { // a chunk may cross the border of two regions
+            long regionIndex = position / REGION_SIZE;
+            MappedByteBuffer region = region(regionIndex);
+            int regionOffset = (int) (position - regionIndex * REGION_SIZE);
+            int length = Math.min(buffer.remaining(), region.capacity() - regionOffset);
+
+            region.put(regionOffset, buffer, buffer.position(), length);
+            buffer.position(buffer.position() + length);
+            position += length;
+        }
+    }
+
+    private synchronized MappedByteBuffer region(long regionIndex) throws IOException {
+        MappedByteBuffer region = regions.get(regionIndex);
+        if (region == null) {
+            long regionStart = regionIndex * REGION_SIZE;
+            long regionSize = Math.min(REGION_SIZE, fileSize - regionStart);
+            region = fileChannel.map(FileChannel.MapMode.READ_WRITE, regionStart, regionSize);
+            regions.put(regionIndex, region);
+        }
+        return region;
+    }
+
+    @Override
+    public synchronized void force() throws IOException {
+        for (MappedByteBuffer region : regions.values()) {
+            region.force();
+        }
+        fileChannel.force(true);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (MappedByteBuffer region : regions.values()) {
+            region.force();
+        }
+        regions.clear();
+        fileChannel.close();
+    }
+}
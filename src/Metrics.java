@@ -0,0 +1,287 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The metrics of all downloads of the download manager.
+ *
+ * The getters, the FileWriter and the journals only bump counters and histograms, which costs a few atomic operations
+ * per chunk. A sampler on a scheduled thread turns them into rates once per interval, and the last sample is exposed
+ * over JMX, written as a JSON line to the metrics log and shown by the DownloadStatus.
+ *
+ * Everything is measured over the last interval, except the total of received bytes.
+ */
+class Metrics implements MetricsMXBean {
+
+    private static final String OBJECT_NAME = "idc:type=Metrics";
+
+    private final ChunkQueues queues;
+
+    private final LongAdder bytesReceived = new LongAdder();
+
+    private final LongAdder tokenWaitNanos = new LongAdder();
+
+    private final LongAdder retries = new LongAdder();
+
+    private final LongAdder hedges = new LongAdder();
+
+    /* writing, hashing and marking a chunk or a run as downloaded */
+    private final Histogram writeLatency = new Histogram();
+
+    private final Histogram persistLatency = new Histogram(); // time of writing the journal or a checkpoint
+
+    /* the getters which are running, in the order they started */
+    private final List<WorkerMetrics> workers = new CopyOnWriteArrayList<>();
+
+    private volatile Sample sample = new Sample(0, 0, new long[0], 0, Histogram.Snapshot.EMPTY,
+            Histogram.Snapshot.EMPTY, 0, 0, 0);
+
+    private long sampledBytes; // only used by the sampler
+
+    private long sampledTime = System.nanoTime();
+
+    private PrintStream log; // the metrics log, or null
+
+    private ObjectName objectName; // registered over JMX, or null
+
+    /**
+     * @param queues the queues of the chunks to write, their size is sampled
+     */
+    Metrics(ChunkQueues queues) {
+        this.queues = queues;
+    }
+
+    /**
+     * Samples the metrics periodically
+     *
+     * @param scheduler thread to sample on
+     * @param intervalMillis time between two samples
+     * @param logFile file to append a JSON line to after every sample, "-" for stderr, or null
+     * @param jmx true to register the metrics over JMX
+     */
+    void start(ScheduledExecutorService scheduler, long intervalMillis, String logFile, boolean jmx) {
+        if (logFile != null) {
+            try {
+                log = logFile.equals("-") ? System.err : new PrintStream(new FileOutputStream(logFile, true), true);
+            } catch (IOException e) {
+                System.err.println("Metrics: IOException occurred: " + e.getMessage());
+            }
+        }
+        if (jmx) {
+            try {
+                objectName = new ObjectName(OBJECT_NAME);
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            } catch (JMException e) {
+                System.err.println("Metrics: " + e + " occurred");
+                objectName = null;
+            }
+        }
+        scheduler.scheduleAtFixedRate(this::sample, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Takes the last sample and closes the log
+     */
+    void stop() {
+        sample();
+        if (log != null && log != System.err) {
+            log.close();
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                // gone anyway
+            }
+        }
+    }
+
+    WorkerMetrics newWorker() {
+        WorkerMetrics worker = new WorkerMetrics(this);
+        workers.add(worker);
+        return worker;
+    }
+
+    void workerEnded(WorkerMetrics worker) {
+        workers.remove(worker);
+    }
+
+    void received(int bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    void waited(long nanos) {
+        tokenWaitNanos.add(nanos);
+    }
+
+    void retried() {
+        retries.increment();
+    }
+
+    void hedged() {
+        hedges.increment();
+    }
+
+    void chunkWritten(long nanos) {
+        writeLatency.record(nanos);
+    }
+
+    void persisted(long nanos) {
+        persistLatency.record(nanos);
+    }
+
+    private synchronized void sample() {
+        long time = System.nanoTime();
+        double seconds = Math.max(1, time - sampledTime) / 1e9;
+        long bytes = bytesReceived.sum();
+
+        WorkerMetrics[] running = workers.toArray(new WorkerMetrics[0]);
+        long[] workerRates = new long[running.length];
+        for (int i = 0; i < running.length; i++) {
+            workerRates[i] = (long) (running[i].sample() / seconds);
+        }
+
+        sample = new Sample(bytes, (long) ((bytes - sampledBytes) / seconds), workerRates, queues.size(),
+                writeLatency.drain(), persistLatency.drain(), tokenWaitNanos.sumThenReset(), retries.sumThenReset(),
+                hedges.sumThenReset());
+        sampledBytes = bytes;
+        sampledTime = time;
+
+        if (log != null) {
+            log.println(sample.toJson(System.currentTimeMillis()));
+        }
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return sample.bytesReceived;
+    }
+
+    @Override
+    public long getBytesPerSecond() {
+        return sample.bytesPerSecond;
+    }
+
+    @Override
+    public long[] getWorkerBytesPerSecond() {
+        return sample.workerBytesPerSecond.clone();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return sample.queueDepth;
+    }
+
+    @Override
+    public long getWriteLatencyP50Micros() {
+        return sample.writeLatency.percentile(0.5) / 1000;
+    }
+
+    @Override
+    public long getWriteLatencyP99Micros() {
+        return sample.writeLatency.percentile(0.99) / 1000;
+    }
+
+    @Override
+    public long getWriteLatencyMaxMicros() {
+        return sample.writeLatency.getMax() / 1000;
+    }
+
+    @Override
+    public long getPersistCount() {
+        return sample.persistLatency.getCount();
+    }
+
+    @Override
+    public long getPersistMillis() {
+        return sample.persistLatency.getTotal() / 1000000;
+    }
+
+    @Override
+    public long getPersistMaxMillis() {
+        return sample.persistLatency.getMax() / 1000000;
+    }
+
+    @Override
+    public long getTokenWaitMillis() {
+        return sample.tokenWaitNanos / 1000000;
+    }
+
+    @Override
+    public long getRetries() {
+        return sample.retries;
+    }
+
+    @Override
+    public long getHedges() {
+        return sample.hedges;
+    }
+
+    /**
+     * The metrics of one interval
+     */
+    private static final class Sample {
+
+        final long bytesReceived;
+
+        final long bytesPerSecond;
+
+        final long[] workerBytesPerSecond;
+
+        final int queueDepth;
+
+        final Histogram.Snapshot writeLatency;
+
+        final Histogram.Snapshot persistLatency;
+
+        final long tokenWaitNanos;
+
+        final long retries;
+
+        final long hedges;
+
+        Sample(long bytesReceived, long bytesPerSecond, long[] workerBytesPerSecond, int queueDepth,
+               Histogram.Snapshot writeLatency, Histogram.Snapshot persistLatency, long tokenWaitNanos, long retries,
+               long hedges) {
+            this.bytesReceived = bytesReceived;
+            this.bytesPerSecond = bytesPerSecond;
+            this.workerBytesPerSecond = workerBytesPerSecond;
+            this.queueDepth = queueDepth;
+            this.writeLatency = writeLatency;
+            this.persistLatency = persistLatency;
+            this.tokenWaitNanos = tokenWaitNanos;
+            this.retries = retries;
+            this.hedges = hedges;
+        }
+
+        String toJson(long timeMillis) {
+            StringBuilder workers = new StringBuilder();
+            for (long rate : workerBytesPerSecond) {
+                workers.append(workers.length() == 0 ? "" : ",").append(rate);
+            }
+            return "{\"time\":" + timeMillis
+                    + ",\"bytesReceived\":" + bytesReceived
+                    + ",\"bytesPerSecond\":" + bytesPerSecond
+                    + ",\"workerBytesPerSecond\":[" + workers + "]"
+                    + ",\"queueDepth\":" + queueDepth
+                    + ",\"writes\":" + writeLatency.getCount()
+                    + ",\"writeP50Micros\":" + writeLatency.percentile(0.5) / 1000
+                    + ",\"writeP99Micros\":" + writeLatency.percentile(0.99) / 1000
+                    + ",\"writeMaxMicros\":" + writeLatency.getMax() / 1000
+                    + ",\"persists\":" + persistLatency.getCount()
+                    + ",\"persistMillis\":" + persistLatency.getTotal() / 1000000
+                    + ",\"persistMaxMillis\":" + persistLatency.getMax() / 1000000
+                    + ",\"tokenWaitMillis\":" + tokenWaitNanos / 1000000
+                    + ",\"retries\":" + retries
+                    + ",\"hedges\":" + hedges + "}";
+        }
+    }
+}
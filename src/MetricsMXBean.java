@@ -0,0 +1,31 @@
+/**
+ * The metrics of the download manager as exposed over JMX (idc:type=Metrics), the values of the last sample
+ */
+public interface MetricsMXBean {
+
+    long getBytesReceived();
+
+    long getBytesPerSecond();
+
+    long[] getWorkerBytesPerSecond();
+
+    int getQueueDepth();
+
+    long getWriteLatencyP50Micros();
+
+    long getWriteLatencyP99Micros();
+
+    long getWriteLatencyMaxMicros();
+
+    long getPersistCount();
+
+    long getPersistMillis();
+
+    long getPersistMaxMillis();
+
+    long getTokenWaitMillis();
+
+    long getRetries();
+
+    long getHedges();
+}
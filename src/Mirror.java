@@ -0,0 +1,79 @@
+import java.net.URL;
+
+/**
+ * A source of the file, with the throughput and error rate observed by the range getters downloading from it
+ */
+class Mirror {
+
+    private static final double WEIGHT = 0.3; // weight of a new observation in the moving averages
+
+    private final URL url;
+
+    private final long size; // size of the file on this mirror
+
+    private double throughput; // moving average of the bytes per second of a connection, 0 until measured
+
+    private double errorRate; // moving average of the failed ranges, between 0 and 1
+
+    private long bytesDownloaded;
+
+    private long errors;
+
+    Mirror(URL url, long size) {
+        this.url = url;
+        this.size = size;
+    }
+
+    URL getUrl() {
+        return url;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    synchronized void rangeDownloaded(long bytes, long nanos) {
+        if (bytes > 0 && nanos > 0) {
+            double sample = bytes * 1e9 / nanos;
+            throughput = throughput == 0 ? sample : (1 - WEIGHT) * throughput + WEIGHT * sample;
+        }
+        errorRate = (1 - WEIGHT) * errorRate;
+        bytesDownloaded += bytes;
+    }
+
+    /**
+     * A getter gave the rest of a range up because the mirror stalled
+     *
+     * @param throughput bytes per second of the getter's connection when it stalled
+     */
+    synchronized void rangeLeft(long bytes, double throughput) {
+        this.throughput = this.throughput == 0 ? throughput : (1 - WEIGHT) * this.throughput + WEIGHT * throughput;
+        bytesDownloaded += bytes;
+    }
+
+    synchronized void rangeFailed(long bytes) {
+        errorRate = (1 - WEIGHT) * errorRate + WEIGHT;
+        bytesDownloaded += bytes;
+        errors++;
+    }
+
+    /**
+     * The expected throughput of a connection to this mirror. A mirror which caps the bandwidth per client shows a
+     * lower throughput per connection the more connections download from it, so it gets fewer connections.
+     *
+     * @param unknownThroughput throughput to assume if none was measured yet
+     */
+    synchronized double score(double unknownThroughput) {
+        return (throughput == 0 ? unknownThroughput : throughput) * (1 - errorRate);
+    }
+
+    synchronized double getThroughput() {
+        return throughput;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Mirror " + url + " downloaded: " + bytesDownloaded + " bytes errors: " + errors
+                + " throughput: " + (long) (throughput / 1000) + " KBps";
+    }
+}
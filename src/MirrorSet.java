@@ -0,0 +1,85 @@
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The mirrors of a download, which the HTTPRangeGetters spread their connections across.
+ *
+ * A getter picks a mirror at random, weighted by the score of the mirrors, so the connections are spread in proportion
+ * to the throughput and the error rate observed so far. A mirror without observations is scored like the best one,
+ * so that it gets tried. A getter leaves its mirror when it scores far below the best one, after its range, or in the
+ * middle of the range when its connection to the mirror is far slower than the best mirror, e.g. because it stalls.
+ */
+class MirrorSet {
+
+    /* a getter leaves a mirror which scores less than this part of the best mirror */
+    private static final double LEAVE_RATIO = 0.25;
+
+    private final List<Mirror> mirrors;
+
+    MirrorSet(List<Mirror> mirrors) {
+        this.mirrors = mirrors;
+    }
+
+    /**
+     * @return a mirror chosen at random, weighted by the scores of the mirrors
+     */
+    Mirror pick() {
+        if (mirrors.size() == 1) return mirrors.get(0);
+
+        double unknownThroughput = bestThroughput();
+        double[] scores = new double[mirrors.size()];
+        double total = 0;
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = mirrors.get(i).score(unknownThroughput);
+            total += scores[i];
+        }
+
+        double random = ThreadLocalRandom.current().nextDouble() * total;
+        for (int i = 0; i < scores.length - 1; i++) {
+            random -= scores[i];
+            if (random < 0) return mirrors.get(i);
+        }
+        return mirrors.get(scores.length - 1);
+    }
+
+    /**
+     * @return true if the getters should move from the mirror to better ones
+     */
+    boolean shouldLeave(Mirror mirror) {
+        if (mirrors.size() == 1) return false;
+
+        double unknownThroughput = bestThroughput();
+        double best = 0;
+        for (Mirror other : mirrors) {
+            best = Math.max(best, other.score(unknownThroughput));
+        }
+        return mirror.score(unknownThroughput) < LEAVE_RATIO * best;
+    }
+
+    /**
+     * @param throughput bytes per second of a getter's current response from the mirror
+     * @return true if the getter should give the rest of its range up, to download it from a better mirror
+     */
+    boolean isStalled(Mirror mirror, double throughput) {
+        if (mirrors.size() == 1) return false;
+
+        double unknownThroughput = bestThroughput();
+        double best = 0;
+        for (Mirror other : mirrors) {
+            best = Math.max(best, other.score(unknownThroughput));
+        }
+        return throughput < LEAVE_RATIO * best;
+    }
+
+    private double bestThroughput() {
+        double best = 0;
+        for (Mirror mirror : mirrors) {
+            best = Math.max(best, mirror.getThroughput());
+        }
+        return best == 0 ? 1 : best; // all mirrors are equal while nothing was measured
+    }
+
+    List<Mirror> getMirrors() {
+        return mirrors;
+    }
+}
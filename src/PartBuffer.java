@@ -0,0 +1,87 @@
+import java.util.Arrays;
+
+/**
+ * Disjoint parts of a chunk as start/end pairs in order, e.g. the parts of a chunk which are still missing.
+ *
+ * A FileWriter keeps one PartBuffer and reuses it for every chunk it writes, so that looking up and marking the
+ * missing parts of a chunk allocates nothing once the buffer has grown to the most parts a chunk had.
+ */
+class PartBuffer {
+
+    private long[] bounds = new long[8];
+
+    private long[] spare = new long[8]; // the result of subtract, swapped with bounds
+
+    private int size; // number of parts
+
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * Appends a part, it must start after the end of the last one
+     */
+    void add(long start, long end) {
+        if (2 * size == bounds.length) {
+            bounds = Arrays.copyOf(bounds, 2 * bounds.length);
+        }
+        bounds[2 * size] = start;
+        bounds[2 * size + 1] = end;
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    long start(int part) {
+        return bounds[2 * part];
+    }
+
+    long end(int part) {
+        return bounds[2 * part + 1];
+    }
+
+    /**
+     * Removes the bytes of the other parts from these parts, a part which overlaps them is shortened or split
+     */
+    void subtract(PartBuffer other) {
+        if (size == 0 || other.size == 0) return;
+        if (spare.length < 2 * (size + other.size)) { // each other part splits at most one part in two
+            spare = new long[2 * (size + other.size)];
+        }
+
+        int count = 0;
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            long start = start(i);
+            final long end = end(i);
+            while (j < other.size && other.end(j) < start) {
+                j++;
+            }
+            // the gaps between the other parts within this part
+            for (int k = j; k < other.size && other.start(k) <= end; k++) {
+                if (other.start(k) > start) {
+                    spare[2 * count] = start;
+                    spare[2 * count + 1] = other.start(k) - 1;
+                    count++;
+                }
+                start = Math.max(start, other.end(k) + 1);
+            }
+            if (start <= end) {
+                spare[2 * count] = start;
+                spare[2 * count + 1] = end;
+                count++;
+            }
+        }
+
+        final long[] result = spare;
+        spare = bounds;
+        bounds = result;
+        size = count;
+    }
+}
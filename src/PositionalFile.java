@@ -0,0 +1,18 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * The downloaded file as seen by the FileWriter: every chunk is written at its own offset.
+ */
+interface PositionalFile extends Closeable {
+
+    /**
+     * Writes all bytes of the chunk at the chunk's offset.
+     */
+    void write(Chunk chunk) throws IOException;
+
+    /**
+     * Forces all written bytes (and the size of the file) to the storage device.
+     */
+    void force() throws IOException;
+}
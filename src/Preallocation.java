@@ -0,0 +1,87 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The ways the downloaded file is prepared before the first chunk is written.
+ *
+ * - NONE: the file grows as the chunks are written (the original behavior)
+ * - SPARSE: the file gets its final size right away, without allocating the blocks which are not written yet (the
+ *           default)
+ * - FULL: the file is filled with zeros up to its final size, so its blocks are allocated in large contiguous extents
+ *         and the space is reserved before the download starts. Java has no fallocate, so this writes the file once
+ *         more, which doubles the disk writes of the download; it is only done when the file is created.
+ *
+ * Every mode first checks that the file system has enough usable space for the bytes the file still has to grow by,
+ * so that a full disk fails the download at its start instead of in the middle. A file which has its final size
+ * already is left as it is.
+ */
+enum Preallocation {
+
+    NONE("none"),
+
+    SPARSE("sparse"),
+
+    FULL("full");
+
+    private static final int FILL_SIZE = 1024 * 1024; // zeros written at once
+
+    private final String name;
+
+    Preallocation(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Prepares the file to be written at any offset.
+     *
+     * @param file the downloaded file
+     * @param fileSize the final size of the file
+     * @throws IOException if there is not enough space for the rest of the file, or the file cannot be extended
+     */
+    void apply(File file, long fileSize) throws IOException {
+        long size = file.length(); // 0 if the file does not exist yet
+        if (size >= fileSize) return; // created before, e.g. by a previous run
+
+        File directory = file.getAbsoluteFile().getParentFile();
+        long usable = directory.getUsableSpace();
+        if (usable > 0 && usable < fileSize - size) { // 0 if the file system does not tell
+            throw new IOException("Not enough space in " + directory + ": " + (fileSize - size) + " bytes needed, "
+                    + usable + " bytes usable");
+        }
+        if (this == NONE) return;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            long position = channel.size();
+            if (this == SPARSE) {
+                // writing the last byte extends the file, the blocks before it stay unallocated
+                channel.write(ByteBuffer.allocate(1), fileSize - 1);
+                return;
+            }
+            ByteBuffer zeros = ByteBuffer.allocateDirect(FILL_SIZE);
+            while (position < fileSize) {
+                zeros.clear().limit((int) Math.min(FILL_SIZE, fileSize - position));
+                while (zeros.hasRemaining()) {
+                    position += channel.write(zeros, position);
+                }
+            }
+        }
+    }
+
+    static Preallocation fromName(String name) {
+        for (Preallocation preallocation : values()) {
+            if (preallocation.name.equalsIgnoreCase(name)) {
+                return preallocation;
+            }
+        }
+        throw new IllegalArgumentException("Unknown preallocation: " + name);
+    }
+
+    @Override
+    public String toString() {
+        return this.name;
+    }
+}
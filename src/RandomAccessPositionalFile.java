@@ -0,0 +1,33 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Writes chunks with seek + write on a RandomAccessFile.
+ *
+ * The file pointer is shared, so the FileWriters write one after the other.
+ */
+class RandomAccessPositionalFile implements PositionalFile {
+
+    private final RandomAccessFile randomAccessFile;
+
+    RandomAccessPositionalFile(File file) throws IOException {
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+    }
+
+    @Override
+    public synchronized void write(Chunk chunk) throws IOException {
+        randomAccessFile.seek(chunk.getOffset());
+        randomAccessFile.write(chunk.getData());
+    }
+
+    @Override
+    public void force() throws IOException {
+        randomAccessFile.getFD().sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        randomAccessFile.close();
+    }
+}
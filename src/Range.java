@@ -1,49 +1,108 @@
-import java.io.Serializable;
-
 /**
  * Describes a simple range, with a start, an end, and a length
+ *
+ * Ranges are handed out by DownloadableMetadata to the HTTPRangeGetter which downloads them. While it is
+ * downloaded, an idle HTTPRangeGetter may steal the tail of the range, which moves its end forward. In the endgame a
+ * second getter may download the rest of the range at the same time (a hedged request), the bytes are handed over by
+ * whichever getter reads them first.
  */
-class Range implements Serializable {
-    
-	private static final long serialVersionUID = 1L;
+class Range {
 
-	private Long start; // 0 based
+    private final long start; // 0 based
 
-    private Long end;
+    private long end; // guarded by this, only shrinks
 
-    private Long length;
+    private long position; // guarded by this, the next byte the HTTPRangeGetter hands to the FileWriter
 
-    private Boolean inUse; // true, when rangeGetter is download this range, false otherwise
+    private final long claimed = System.nanoTime();
 
-    Range(Long start, Long end) {
+    Range(long start, long end) {
         this.start = start;
         this.end = end;
-        this.length = end - start + 1;
-        this.inUse = false;
+        this.position = start;
     }
 
-    Long getStart() {
+    long getStart() {
         return this.start;
     }
 
-    Long getEnd() {
+    synchronized long getEnd() {
         return this.end;
     }
 
-    Long getLength() {
-        return this.length;
+    synchronized long getLength() {
+        return this.end - this.start + 1;
+    }
+
+    synchronized long getPosition() {
+        return this.position;
     }
 
-    Boolean getInUse() {
-    	return this.inUse;
+    /**
+     * Advances the position by the bytes the HTTPRangeGetter read, as far as they still belong to the range
+     *
+     * @param bytesRead number of bytes read at the current position
+     * @return the number of bytes which belong to the range, 0 if the rest of the range was stolen
+     */
+    synchronized int advance(int bytesRead) {
+        int length = (int) Math.max(0, Math.min(bytesRead, this.end - this.position + 1));
+        this.position += length;
+        return length;
     }
-    
-    void setInUse(Boolean bool) {
-    	this.inUse = bool;
+
+    /**
+     * Counts the bytes at the front of a read which were handed over before, by the other getter of a hedged range.
+     * Call it and advance() while holding the monitor of the range, so that the other getter cannot advance in between.
+     *
+     * @param offset offset of the first byte read
+     * @param bytesRead number of bytes read
+     * @return the number of bytes to skip, which is bytesRead if all of them were handed over before
+     */
+    synchronized int behind(long offset, int bytesRead) {
+        return (int) Math.max(0, Math.min(bytesRead, this.position - offset));
     }
-    
-    void setStart(Long start) {
-    	this.length = this.end - start + 1;
-    	this.start = start;
+
+    synchronized boolean isDone() {
+        return this.position > this.end;
+    }
+
+    /**
+     * Estimates the time until the range is downloaded from the rate since it was claimed
+     */
+    synchronized long getRemainingNanos(long now) {
+        long remaining = Math.max(0, this.end - this.position + 1);
+        long downloaded = Math.max(1, this.position - this.start);
+        return (long) ((double) remaining * (now - this.claimed) / downloaded);
+    }
+
+    /**
+     * @return the bytes handed over per second since the range was claimed
+     */
+    synchronized double getBytesPerSecond(long now) {
+        return (this.position - this.start) * 1e9 / Math.max(1, now - this.claimed);
+    }
+
+    /**
+     * Cuts off the second half of the not yet downloaded bytes between from and to
+     *
+     * @param from first byte which may be cut off
+     * @param to last byte which may be cut off, the end of the range or before it
+     * @param minLength minimal number of bytes of each half
+     * @return the first byte of the cut off half, or -1 if there are not enough bytes left to split
+     */
+    synchronized long split(long from, long to, long minLength) {
+        long first = Math.max(from, this.position);
+        long length = to - first + 1;
+        if (length < 2 * minLength) {
+            return -1;
+        }
+        long split = first + length / 2;
+        this.end = split - 1;
+        return split;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Range " + this.start + "-" + this.end;
     }
 }
@@ -0,0 +1,13 @@
+/**
+ * A worker of a download which keeps downloading the missing ranges of the DownloadableMetadata until none are left.
+ *
+ * - HTTPRangeGetter: requests its ranges on its own persistent HTTP/1.1 connection
+ * - HttpClientRangeGetter: requests its ranges on a shared HttpClient, as streams of one HTTP/2 connection
+ */
+interface RangeGetter extends Runnable {
+
+    /**
+     * Lets the getter stop as soon as it has downloaded its current range
+     */
+    void retire();
+}
@@ -0,0 +1,294 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Persists the download progress as checkpoints plus an append-only journal.
+ *
+ * A checkpoint holds all missing ranges. For safety checkpoints are written alternating into two files
+ * (extension meta0/meta1), if one is corrupted during saving, the other is still readable.
+ * Every downloaded interval is appended to the journal (extension journal) as a 20 byte record, and after
+ * a number of records a new checkpoint is written and the journal is truncated.
+ *
+ * On resume the newest readable checkpoint is loaded and the journal is replayed on top of it. Replaying a record
+ * twice does no harm, so a crash between writing a checkpoint and truncating the journal is fine as well.
+ *
+ * checkpoint: magic (int), sequence (long), count (int), count * (start (long), end (long)), crc32 (long)
+ * journal record: start (long), end (long), crc32 of start and end (int)
+ */
+class RangeJournal {
+
+    private static final int CHECKPOINT_MAGIC = 0x49444331; // "IDC1"
+
+    private static final int RECORD_SIZE = 20;
+
+    private static final int PENDING_RECORDS = 4096; // records are buffered in memory until the policy flushes them
+
+    private final File[] checkpointFiles;
+
+    private final File journalFile;
+
+    private final DurabilityPolicy policy;
+
+    private final Metrics metrics;
+
+    private final ByteBuffer pending = ByteBuffer.allocate(PENDING_RECORDS * RECORD_SIZE);
+
+    private final CRC32 crc = new CRC32();
+
+    private FileChannel journalChannel;
+
+    private long sequence; // sequence number of the newest checkpoint
+
+    private long pendingBytes; // downloaded bytes covered by the pending records
+
+    private long lastFlush = System.currentTimeMillis();
+
+    private int records; // records in the journal since the last checkpoint
+
+    /* flushed before the journal is forced, so that the journal never claims bytes which are not on the disk */
+    private Flushable dataSync;
+
+    RangeJournal(String filenameWithoutExtension, DurabilityPolicy policy, Metrics metrics) {
+        this.checkpointFiles = new File[] {
+                new File(filenameWithoutExtension + ".meta0"),
+                new File(filenameWithoutExtension + ".meta1")
+        };
+        this.journalFile = new File(filenameWithoutExtension + ".journal");
+        this.policy = policy;
+        this.metrics = metrics;
+    }
+
+    boolean exists() {
+        return checkpointFiles[0].exists() || checkpointFiles[1].exists();
+    }
+
+    void setDataSync(Flushable dataSync) {
+        this.dataSync = dataSync;
+    }
+
+    /**
+     * Reads the newest checkpoint which is not corrupted.
+     *
+     * @return the missing ranges as start/end pairs, or null if no checkpoint has this format, e.g. because they were
+     *         written by an older version
+     * @throws IOException if no checkpoint of this format is readable
+     */
+    long[] readCheckpoint() throws IOException {
+        long[] newest = null;
+        boolean current = false; // a checkpoint of this format was found
+        for (File file : checkpointFiles) {
+            if (!file.exists()) continue;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                crc.reset();
+                if (readInt(in) != CHECKPOINT_MAGIC) continue;
+                current = true;
+                long fileSequence = readLong(in);
+                int count = readInt(in);
+                long[] ranges = new long[count * 2];
+                for (int i = 0; i < ranges.length; i++) {
+                    ranges[i] = readLong(in);
+                }
+                if (in.readLong() != crc.getValue()) continue;
+                if (newest == null || fileSequence > sequence) {
+                    newest = ranges;
+                    sequence = fileSequence;
+                }
+            } catch (IOException e) {
+                // corrupted (e.g. truncated) checkpoint, try the other file
+            }
+        }
+        if (newest == null && current) {
+            throw new IOException("No readable checkpoint");
+        }
+        return newest;
+    }
+
+    /**
+     * Reads the records of the journal and opens it for appending.
+     * A torn record at the end of the journal (crash during writing) and everything after it is cut off.
+     *
+     * @return the downloaded intervals as start/end pairs
+     */
+    long[] readJournal() throws IOException {
+        openJournal();
+        long size = journalChannel.size();
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, Integer.MAX_VALUE - 8));
+        while (buffer.hasRemaining() && journalChannel.read(buffer, buffer.position()) > 0) ;
+        buffer.flip();
+
+        long[] intervals = new long[buffer.remaining() / RECORD_SIZE * 2];
+        int count = 0;
+        while (buffer.remaining() >= RECORD_SIZE) {
+            long start = buffer.getLong();
+            long end = buffer.getLong();
+            if (buffer.getInt() != recordCrc(start, end)) break;
+            intervals[count++] = start;
+            intervals[count++] = end;
+        }
+        this.records = count / 2;
+        journalChannel.truncate((long) records * RECORD_SIZE);
+        journalChannel.position((long) records * RECORD_SIZE);
+
+        long[] valid = new long[count];
+        System.arraycopy(intervals, 0, valid, 0, count);
+        return valid;
+    }
+
+    /**
+     * Appends a downloaded interval, the record is persisted according to the durability policy.
+     */
+    void append(long start, long end) throws IOException {
+        if (!pending.hasRemaining()) {
+            flush();
+        }
+        pending.putLong(start).putLong(end).putInt(recordCrc(start, end));
+        pendingBytes += end - start + 1;
+        records++;
+
+        long now = System.currentTimeMillis();
+        if (policy.shouldFlush(pendingBytes, now - lastFlush)) {
+            flush();
+        }
+    }
+
+    /**
+     * @return true if the journal has grown enough to be compacted into a new checkpoint
+     */
+    boolean shouldCompact() {
+        return records >= policy.getCompactRecords();
+    }
+
+    /**
+     * Writes the pending records to the journal
+     */
+    void flush() throws IOException {
+        lastFlush = System.currentTimeMillis();
+        if (pending.position() == 0) return;
+
+        final long start = System.nanoTime();
+        openJournal();
+        pending.flip();
+        while (pending.hasRemaining()) {
+            journalChannel.write(pending);
+        }
+        pending.clear();
+        pendingBytes = 0;
+        if (policy.isFsync()) {
+            syncData();
+            journalChannel.force(false);
+        }
+        metrics.persisted(System.nanoTime() - start);
+    }
+
+    /**
+     * Writes all missing ranges (as start/end pairs) into the older of the two checkpoint files and empties the
+     * journal.
+     */
+    void writeCheckpoint(long[] missingRanges) throws IOException {
+        final long start = System.nanoTime();
+        syncData(); // the checkpoint replaces journal records, which may only claim bytes that are on the disk
+        long nextSequence = sequence + 1;
+        File file = checkpointFiles[(int) (nextSequence % 2)];
+
+        FileOutputStream fileOutputStream = new FileOutputStream(file);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOutputStream))) {
+            crc.reset();
+            writeInt(out, CHECKPOINT_MAGIC);
+            writeLong(out, nextSequence);
+            writeInt(out, missingRanges.length / 2);
+            for (long position : missingRanges) {
+                writeLong(out, position);
+            }
+            out.writeLong(crc.getValue());
+            out.flush();
+            if (policy.isFsync()) {
+                fileOutputStream.getFD().sync();
+            }
+        }
+        sequence = nextSequence;
+
+        // the records pending in memory are part of the checkpoint already
+        pending.clear();
+        pendingBytes = 0;
+        lastFlush = System.currentTimeMillis();
+        openJournal();
+        journalChannel.truncate(0);
+        records = 0;
+        metrics.persisted(System.nanoTime() - start);
+    }
+
+    void close() throws IOException {
+        flush();
+        if (journalChannel != null) {
+            journalChannel.close();
+            journalChannel = null;
+        }
+    }
+
+    void delete() {
+        try {
+            close();
+        } catch (IOException e) {
+            // deleted anyway
+        }
+        checkpointFiles[0].delete();
+        checkpointFiles[1].delete();
+        journalFile.delete();
+    }
+
+    private void openJournal() throws IOException {
+        if (journalChannel == null) {
+            journalChannel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            journalChannel.position(journalChannel.size());
+        }
+    }
+
+    private void syncData() throws IOException {
+        if (policy.isFsync() && dataSync != null) {
+            dataSync.flush();
+        }
+    }
+
+    private int recordCrc(long start, long end) {
+        crc.reset();
+        updateCrc(start);
+        updateCrc(end);
+        return (int) crc.getValue();
+    }
+
+    private void updateCrc(long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (value >>> shift));
+        }
+    }
+
+    private int readInt(DataInputStream in) throws IOException {
+        int value = in.readInt();
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            crc.update(value >>> shift);
+        }
+        return value;
+    }
+
+    private long readLong(DataInputStream in) throws IOException {
+        long value = in.readLong();
+        updateCrc(value);
+        return value;
+    }
+
+    private void writeInt(DataOutputStream out, int value) throws IOException {
+        out.writeInt(value);
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            crc.update(value >>> shift);
+        }
+    }
+
+    private void writeLong(DataOutputStream out, long value) throws IOException {
+        out.writeLong(value);
+        updateCrc(value);
+    }
+}
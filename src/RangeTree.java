@@ -0,0 +1,423 @@
+import java.util.Arrays;
+
+/**
+ * The missing ranges of a file as a sorted set of disjoint intervals.
+ *
+ * The intervals are kept in a treap (a randomized binary search tree) ordered by their start, with primitive
+ * start and end, so that claiming a range for a HTTPRangeGetter, removing a downloaded interval from the front,
+ * the end or the middle of a range (splitting it) and releasing a claim are all O(log n).
+ * Downloaded intervals are removed from the set, so adjacent downloaded intervals merge by themselves: they are
+ * the gaps between the nodes.
+ *
+ * Every node is either unclaimed or claimed by the Range that was handed out for it. A node split off from a
+ * claimed node stays claimed by the same Range. Once the Range is downloaded, its nodes stay claimed by DOWNLOADED
+ * until the FileWriter has written them, as do the bytes a released Range handed over before. When nothing is left
+ * to claim, the claimed node with the most remaining bytes can be split in half and its tail claimed by another Range
+ * (work stealing).
+ *
+ * Not thread-safe, the DownloadableMetadata guards it with its lock.
+ */
+class RangeTree {
+
+    private static final class Node {
+
+        long start;
+
+        long end;
+
+        Range owner; // the Range which is downloading this node, null if unclaimed
+
+        final int priority;
+
+        Node left;
+
+        Node right;
+
+        int unclaimed; // number of unclaimed nodes in this subtree
+
+        long largestClaimed; // length of the longest node in this subtree which is still downloaded, or 0
+
+        Node(long start, long end, Range owner, int priority) {
+            this.start = start;
+            this.end = end;
+            this.owner = owner;
+            this.priority = priority;
+        }
+    }
+
+    /* claims the nodes whose bytes are downloaded and wait in the queue for the FileWriter */
+    private static final Range DOWNLOADED = new Range(0, -1);
+
+    private Node root;
+
+    private int size;
+
+    private long remaining; // sum of the lengths of all intervals
+
+    private int seed = 0x2545F491; // xorshift state for the node priorities
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return root == null;
+    }
+
+    /**
+     * The number of bytes in all intervals
+     */
+    long getRemaining() {
+        return remaining;
+    }
+
+    /**
+     * Adds an unclaimed interval, it must not overlap the intervals in the set
+     */
+    void add(long start, long end) {
+        insert(start, end, null);
+        remaining += end - start + 1;
+    }
+
+    /**
+     * The start of the first interval, i.e. the first byte which is not written yet
+     *
+     * @return the start, or -1 if the set is empty
+     */
+    long first() {
+        if (root == null) return -1;
+
+        Node node = root;
+        while (node.left != null) {
+            node = node.left;
+        }
+        return node.start;
+    }
+
+    boolean hasUnclaimed() {
+        return count(root) > 0;
+    }
+
+    /**
+     * Claims the front of the first unclaimed interval
+     *
+     * @param maxLength the longest range to claim, a longer interval is split and its rest stays unclaimed
+     * @param limit the claimed range ends before this offset
+     * @return the claimed range, or null if all intervals before the limit are claimed
+     */
+    Range claim(long maxLength, long limit) {
+        if (count(root) == 0) return null;
+
+        Node node = root;
+        while (true) {
+            if (count(node.left) > 0) {
+                node = node.left;
+            } else if (node.owner == null) {
+                break;
+            } else {
+                node = node.right;
+            }
+        }
+        if (node.start >= limit) return null;
+        maxLength = Math.min(maxLength, limit - node.start);
+        if (node.end - node.start + 1 > maxLength) {
+            long nodeEnd = node.end;
+            node.end = node.start + maxLength - 1;
+            insert(node.end + 1, nodeEnd, null);
+        }
+        node.owner = new Range(node.start, node.end);
+        refresh(root, node.start);
+        return node.owner;
+    }
+
+    /**
+     * Splits the claimed interval with the most remaining bytes and claims the second half of the bytes its
+     * Range did not download yet. Further intervals of the victim Range after the split are claimed as well.
+     *
+     * @param minLength minimal number of bytes of each half
+     * @return the claimed tail, or null if no claimed interval is long enough to be split
+     */
+    Range steal(long minLength) {
+        if (root == null || root.largestClaimed < 2 * minLength) return null;
+
+        Node node = root;
+        while (true) {
+            if (largest(node.left) == node.largestClaimed) {
+                node = node.left;
+            } else if (node.owner != null && node.owner != DOWNLOADED
+                    && node.end - node.start + 1 == node.largestClaimed) {
+                break;
+            } else {
+                node = node.right;
+            }
+        }
+
+        Range victim = node.owner;
+        long victimEnd = victim.getEnd();
+        long split = victim.split(node.start, node.end, minLength);
+        if (split == -1) return null; // the victim has already downloaded most of the node
+
+        Range thief = new Range(split, victimEnd);
+        long nodeEnd = node.end;
+        node.end = split - 1;
+        refresh(root, node.start);
+        insert(split, nodeEnd, thief);
+
+        Node next = higher(split);
+        while (next != null && next.start <= victimEnd) {
+            if (next.owner == victim) {
+                next.owner = thief;
+                refresh(root, next.start);
+            }
+            next = higher(next.start);
+        }
+        return thief;
+    }
+
+    /**
+     * Marks the intervals claimed by the range as unclaimed from its position on. The bytes before the position were
+     * handed over to the FileWriter, they are marked as downloaded so that they are not downloaded again.
+     */
+    void release(Range range) {
+        final long position = range.getPosition();
+        Node node = ceiling(range.getStart());
+        while (node != null && node.start <= range.getEnd()) {
+            if (node.owner == range) {
+                if (node.end < position) {
+                    node.owner = DOWNLOADED;
+                } else if (node.start >= position) {
+                    node.owner = null;
+                } else { // split the node at the position
+                    long nodeEnd = node.end;
+                    node.owner = DOWNLOADED;
+                    node.end = position - 1;
+                    insert(position, nodeEnd, null);
+                }
+                refresh(root, node.start);
+            }
+            node = higher(node.start);
+        }
+    }
+
+    /**
+     * Marks all intervals claimed by the range as downloaded, they can neither be claimed nor stolen anymore
+     */
+    void finish(Range range) {
+        transfer(range, DOWNLOADED);
+    }
+
+    private void transfer(Range range, Range owner) {
+        Node node = ceiling(range.getStart());
+        while (node != null && node.start <= range.getEnd()) {
+            if (node.owner == range) {
+                node.owner = owner;
+                refresh(root, node.start);
+            }
+            node = higher(node.start);
+        }
+    }
+
+    /**
+     * Removes an interval from the set, intervals which overlap it are shortened or split.
+     *
+     * @return the number of bytes which were actually removed
+     */
+    long remove(long start, long end) {
+        long removed = 0;
+        Node node = floor(start);
+        if (node == null || node.end < start) {
+            node = higher(start);
+        }
+
+        while (node != null && node.start <= end) {
+            long nodeStart = node.start;
+            long nodeEnd = node.end;
+
+            if (start <= nodeStart && end >= nodeEnd) { // the whole node was removed
+                root = delete(root, nodeStart);
+                size--;
+                removed += nodeEnd - nodeStart + 1;
+            } else if (start <= nodeStart) { // the front of the node was removed
+                node.start = end + 1;
+                refresh(root, node.start);
+                removed += end + 1 - nodeStart;
+            } else if (end >= nodeEnd) { // the end of the node was removed
+                node.end = start - 1;
+                refresh(root, node.start);
+                removed += nodeEnd - start + 1;
+            } else { // the middle of the node was removed, split it
+                node.end = start - 1;
+                refresh(root, node.start);
+                insert(end + 1, nodeEnd, node.owner);
+                removed += end - start + 1;
+            }
+            node = higher(nodeStart);
+        }
+        remaining -= removed;
+        return removed;
+    }
+
+    /**
+     * Appends the parts of an interval which are in the set to the buffer, in order
+     */
+    void intersect(long start, long end, PartBuffer parts) {
+        Node node = floor(start);
+        if (node == null || node.end < start) {
+            node = higher(start);
+        }
+
+        while (node != null && node.start <= end) {
+            parts.add(Math.max(start, node.start), Math.min(end, node.end));
+            node = higher(node.start);
+        }
+    }
+
+    /**
+     * @return all intervals in order as start/end pairs
+     */
+    long[] toArray() {
+        long[] intervals = new long[size * 2];
+        fill(root, intervals, 0);
+        return intervals;
+    }
+
+    private int fill(Node node, long[] intervals, int index) {
+        if (node == null) return index;
+        index = fill(node.left, intervals, index);
+        intervals[index++] = node.start;
+        intervals[index++] = node.end;
+        return fill(node.right, intervals, index);
+    }
+
+    private void insert(long start, long end, Range owner) {
+        root = insert(root, new Node(start, end, owner, nextPriority()));
+        size++;
+    }
+
+    private Node insert(Node tree, Node node) {
+        if (tree == null) {
+            update(node);
+            return node;
+        }
+        if (node.start < tree.start) {
+            tree.left = insert(tree.left, node);
+            if (tree.left.priority > tree.priority) tree = rotateRight(tree);
+        } else {
+            tree.right = insert(tree.right, node);
+            if (tree.right.priority > tree.priority) tree = rotateLeft(tree);
+        }
+        update(tree);
+        return tree;
+    }
+
+    private Node delete(Node tree, long start) {
+        if (start < tree.start) {
+            tree.left = delete(tree.left, start);
+        } else if (start > tree.start) {
+            tree.right = delete(tree.right, start);
+        } else {
+            return merge(tree.left, tree.right);
+        }
+        update(tree);
+        return tree;
+    }
+
+    /* merges two treaps where all starts in left are smaller than those in right */
+    private Node merge(Node left, Node right) {
+        if (left == null) return right;
+        if (right == null) return left;
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            update(left);
+            return left;
+        }
+        right.left = merge(left, right.left);
+        update(right);
+        return right;
+    }
+
+    /* recomputes the counts and lengths on the path to the node with the given start */
+    private void refresh(Node tree, long start) {
+        if (tree == null) return;
+        if (start < tree.start) {
+            refresh(tree.left, start);
+        } else if (start > tree.start) {
+            refresh(tree.right, start);
+        }
+        update(tree);
+    }
+
+    private Node rotateRight(Node tree) {
+        Node left = tree.left;
+        tree.left = left.right;
+        left.right = tree;
+        update(tree);
+        update(left);
+        return left;
+    }
+
+    private Node rotateLeft(Node tree) {
+        Node right = tree.right;
+        tree.right = right.left;
+        right.left = tree;
+        update(tree);
+        update(right);
+        return right;
+    }
+
+    private static void update(Node node) {
+        node.unclaimed = count(node.left) + count(node.right) + (node.owner == null ? 1 : 0);
+        node.largestClaimed = Math.max(Math.max(largest(node.left), largest(node.right)),
+                node.owner == null || node.owner == DOWNLOADED ? 0 : node.end - node.start + 1);
+    }
+
+    private static int count(Node node) {
+        return node == null ? 0 : node.unclaimed;
+    }
+
+    private static long largest(Node node) {
+        return node == null ? 0 : node.largestClaimed;
+    }
+
+    /* the node with the greatest start <= position */
+    private Node floor(long position) {
+        Node node = root;
+        Node floor = null;
+        while (node != null) {
+            if (node.start <= position) {
+                floor = node;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return floor;
+    }
+
+    /* the node with the smallest start >= position */
+    private Node ceiling(long position) {
+        return higher(position - 1);
+    }
+
+    /* the node with the smallest start > position */
+    private Node higher(long position) {
+        Node node = root;
+        Node higher = null;
+        while (node != null) {
+            if (node.start > position) {
+                higher = node;
+                node = node.left;
+            } else {
+                node = node.right;
+            }
+        }
+        return higher;
+    }
+
+    private int nextPriority() {
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return seed;
+    }
+}
@@ -0,0 +1,40 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides how failed requests are retried.
+ *
+ * A download may fail budget times, every range which is downloaded afterwards earns one failure back (see
+ * ErrorBudget), so a long download survives rare failures while a dead server fails it soon. After a failure a
+ * connection waits a random time up to backoffMillis, doubled with every failure of the connection in a row and at
+ * most maxBackoffMillis ("full jitter"), so that the connections of a download do not retry in lockstep.
+ */
+class RetryPolicy {
+
+    private final int budget;
+
+    private final long backoffMillis;
+
+    private final long maxBackoffMillis;
+
+    RetryPolicy(int budget, long backoffMillis, long maxBackoffMillis) {
+        this.budget = budget;
+        this.backoffMillis = backoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    int getBudget() {
+        return budget;
+    }
+
+    /**
+     * @param failures failures in a row, at least 1
+     * @return the time to wait before the next attempt
+     */
+    long backoffMillis(int failures) {
+        long ceiling = backoffMillis << Math.min(failures - 1, 30);
+        if (ceiling <= 0 || ceiling > maxBackoffMillis) { // shifted out of range, or above the maximum
+            ceiling = maxBackoffMillis;
+        }
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+}
@@ -0,0 +1,105 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes a file to a stream in order while it is downloaded, e.g. to stdout to pipe it into another program.
+ *
+ * While the file is streamed, the DownloadableMetadata claims ranges at most a window ahead of the first byte which is
+ * not written yet, so the written prefix of the file grows as the download goes on. The StreamingOutput reads the
+ * prefix back from the file, which still has it in the page cache, and writes it to the stream as soon as it grows.
+ * So the window is the reorder buffer of the stream, it is bounded but kept in the file instead of in memory, and the
+ * file stays on disk as without streaming: an interrupted download resumes, and streams again from the first byte.
+ *
+ * If the stream cannot be written, e.g. because the program reading it exited, the download is aborted.
+ */
+class StreamingOutput implements Runnable {
+
+    private static final int BLOCK_SIZE = 1024 * 1024; // bytes read from the file and written to the stream at once
+
+    private static final long POLL_MILLIS = 100; // time between two checks whether the stream is stopped
+
+    private final DownloadableMetadata downloadableMetadata;
+
+    private final OutputStream output;
+
+    private volatile boolean stopped;
+
+    private volatile long streamed; // bytes of the file written to the stream
+
+    private final long started = System.nanoTime();
+
+    private volatile long firstByteNanos = -1; // time from the start until the first byte was streamed
+
+    StreamingOutput(DownloadableMetadata downloadableMetadata, OutputStream output) {
+        this.downloadableMetadata = downloadableMetadata;
+        this.output = output;
+    }
+
+    private void stream() throws IOException, InterruptedException {
+        final long fileSize = downloadableMetadata.getFileSize();
+        final ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+        try (FileChannel channel = FileChannel.open(new File(downloadableMetadata.getFilenameWithExtension()).toPath(),
+                StandardOpenOption.READ)) {
+            while (streamed < fileSize) {
+                final long prefix = downloadableMetadata.awaitWritten(streamed, POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (prefix == -1) return; // aborted
+                if (prefix == streamed) {
+                    if (stopped) return; // the download is over without the rest of the file
+                    continue;
+                }
+
+                while (streamed < prefix) {
+                    buffer.clear().limit((int) Math.min(BLOCK_SIZE, prefix - streamed));
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, streamed + buffer.position()) < 0) {
+                            throw new EOFException("The file ends before " + prefix);
+                        }
+                    }
+                    output.write(buffer.array(), 0, buffer.position());
+                    if (firstByteNanos == -1) {
+                        firstByteNanos = System.nanoTime() - started;
+                    }
+                    streamed += buffer.position();
+                }
+                output.flush();
+            }
+        }
+    }
+
+    /**
+     * Stops the stream once it has written the prefix of the file which is written by now, called after the file is
+     * closed
+     */
+    void stop() {
+        this.stopped = true;
+    }
+
+    long getStreamed() {
+        return streamed;
+    }
+
+    /**
+     * @return time from the start of the stream until its first byte was written in milliseconds, or -1
+     */
+    long getFirstByteMillis() {
+        return firstByteNanos == -1 ? -1 : TimeUnit.NANOSECONDS.toMillis(firstByteNanos);
+    }
+
+    @Override
+    public void run() {
+        try {
+            this.stream();
+        } catch (IOException e) {
+            System.err.println("StreamingOutput: IOException occurred.");
+            downloadableMetadata.abort();
+        } catch (InterruptedException e) {
+            System.err.println("StreamingOutput: InterruptedException occurred.");
+        }
+    }
+}
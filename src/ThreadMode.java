@@ -0,0 +1,57 @@
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The kinds of threads the HTTPRangeGetters run on.
+ *
+ * - PLATFORM: a pool of platform threads, one per connection
+ * - VIRTUAL: a virtual thread per connection, so that hundreds of connections are cheap. Virtual threads are final
+ *            since Java 21, on older runtimes this mode falls back to platform threads.
+ *
+ * Getters must not block while holding a monitor, which would pin the carrier thread of a virtual thread, so they
+ * only block on java.util.concurrent locks, queues and LockSupport.
+ */
+enum ThreadMode {
+
+    PLATFORM("platform"),
+
+    VIRTUAL("virtual");
+
+    private final String name;
+
+    ThreadMode(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Creates an executor which starts a thread of this mode for each getter, without limiting their number
+     */
+    ExecutorService newExecutor() {
+        if (this == VIRTUAL) {
+            try {
+                // looked up at runtime, so that the download manager still builds and runs on Java 17
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+                // not available, or a preview feature which is not enabled
+                System.err.println("Warning: virtual threads need Java 21, on Java "
+                        + Runtime.version().feature() + " the connections use platform threads.");
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    static ThreadMode fromName(String name) {
+        for (ThreadMode mode : values()) {
+            if (mode.name.equalsIgnoreCase(name)) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown thread mode: " + name);
+    }
+
+    @Override
+    public String toString() {
+        return this.name;
+    }
+}
@@ -1,46 +1,123 @@
 /**
  * A Token Bucket (https://en.wikipedia.org/wiki/Token_bucket)
  *
- * This thread-safe bucket should support the following methods:
+ * The bucket is refilled continuously with maxBytesPerSecond tokens per second and holds at most a burst of tokens.
+ * Instead of counting tokens it keeps the time at which the bucket is empty again (the "theoretical arrival time" of
+ * the generic cell rate algorithm): taking n tokens moves this time n / rate seconds ahead, and a taker waits until
+ * the bucket is no more than a burst of tokens in debt. Every take reserves its tokens with a single
+ * compare-and-set, so takers are served in the order they arrived, and a waiting taker is parked instead of spinning.
+ *
+ * Buckets form a tree, e.g. a global bucket, a bucket per download and a bucket per connection: tokens are taken from
+ * a bucket and then from each of its ancestors, so no bucket exceeds its rate. The threads of a bucket take tokens
+ * from its parent one at a time, so that the parent is shared round-robin between its busy children no matter how
+ * many threads each child has. A child which takes less than its share, because it is idle or has a lower rate
+ * itself, leaves the rest of the parent's rate to its busy siblings.
+ *
+ * This thread-safe bucket supports the following methods:
  *
  * - take(n): remove n tokens from the bucket (blocks until n tokens are available and taken)
- * - set(n): set the bucket to contain n tokens (to allow "hard" rate limiting)
- * - add(n): add n tokens to the bucket (to allow "soft" rate limiting)
  * - terminate(): mark the bucket as terminated (used to communicate between threads)
  * - terminated(): return true if the bucket is terminated, false otherwise
  *
  */
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class TokenBucket {
 
-	private AtomicLong tokensAvailable;
-	private AtomicBoolean termination;
-	
-    TokenBucket() {
-    	tokensAvailable = new AtomicLong();
-    	termination = new AtomicBoolean();
-    }
-
-    public synchronized void take(long tokens) {
-    	while (tokens > tokensAvailable.get());
-    	tokensAvailable.addAndGet(-tokens);
-    }
-
-    public void terminate() {
-    	termination.set(true);
-    }
-
-    public boolean terminated() {
-        return termination.get();
-    }
-
-    public void set(long tokens) {
-    	tokensAvailable.set(tokens);
-    }
-    
-    public void add(long tokens) {
-    	tokensAvailable.addAndGet(tokens);
-    }
-    
+	private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(50); // tokens of 50ms at most are saved up
+
+	private final double nanosPerToken; // 0 if the bucket is unlimited
+
+	private final long burstNanos;
+
+	/* the time at which all tokens taken so far are refilled, the bucket is full from then on */
+	private final AtomicLong emptyUntil;
+
+	private final AtomicBoolean termination;
+
+	private final TokenBucket parent; // null if no ancestor limits the rate
+
+	/* held while taking from the parent, fair so that the threads of this bucket take their turns in order */
+	private final ReentrantLock parentTurn = new ReentrantLock(true);
+
+	/**
+	 * @param maxBytesPerSecond refill rate of the bucket, or null for an unlimited bucket
+	 */
+	TokenBucket(Long maxBytesPerSecond) {
+		this(maxBytesPerSecond, null);
+	}
+
+	/**
+	 * @param maxBytesPerSecond refill rate of the bucket, or null if only the parent limits the rate
+	 * @param parent bucket to take the tokens from as well, or null
+	 */
+	TokenBucket(Long maxBytesPerSecond, TokenBucket parent) {
+		this.parent = parent != null && parent.isLimited() ? parent : null;
+		this.nanosPerToken = maxBytesPerSecond == null ? 0 : 1e9 / maxBytesPerSecond;
+		// the bucket holds at least one chunk, so that a chunk does not have to wait for more than its own tokens
+		this.burstNanos = Math.max(BURST_NANOS, (long) (HTTPRangeGetter.CHUNK_SIZE * nanosPerToken));
+		this.emptyUntil = new AtomicLong(System.nanoTime()); // start with a full bucket
+		this.termination = new AtomicBoolean();
+	}
+
+	/**
+	 * Takes the tokens, parking the calling thread until they are refilled
+	 *
+	 * @throws InterruptedException if the thread is interrupted while waiting, the tokens stay taken
+	 */
+	public void take(long tokens) throws InterruptedException {
+		if (nanosPerToken != 0) {
+			takeOwn(tokens);
+		}
+		if (parent != null) {
+			parentTurn.lockInterruptibly();
+			try {
+				parent.take(tokens);
+			} finally {
+				parentTurn.unlock();
+			}
+		}
+	}
+
+	private void takeOwn(long tokens) throws InterruptedException {
+		long cost = (long) (tokens * nanosPerToken);
+		long now;
+		long reserved;
+		while (true) {
+			now = System.nanoTime();
+			long current = emptyUntil.get();
+			// a bucket which has been full for a while does not save up more than the burst
+			reserved = Math.max(current, now) + cost;
+			if (emptyUntil.compareAndSet(current, reserved)) break;
+		}
+
+		// the tokens are available once the bucket is at most a burst in debt
+		long deadline = reserved - burstNanos;
+		while (now < deadline && !terminated()) {
+			LockSupport.parkNanos(this, deadline - now);
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			now = System.nanoTime();
+		}
+	}
+
+	/**
+	 * @return true if this bucket or one of its ancestors limits the rate
+	 */
+	boolean isLimited() {
+		return nanosPerToken != 0 || parent != null;
+	}
+
+	public void terminate() {
+		termination.set(true);
+	}
+
+	public boolean terminated() {
+		return termination.get();
+	}
+
 }
@@ -0,0 +1,56 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The counters of one range getter, it adds to the totals of its Metrics as well
+ */
+class WorkerMetrics {
+
+    private final Metrics metrics;
+
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    private long sampledBytes; // bytes at the previous sample, only used by the sampler
+
+    WorkerMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param bytes bytes of the file the getter has received and queued
+     */
+    void received(int bytes) {
+        bytesReceived.addAndGet(bytes);
+        metrics.received(bytes);
+    }
+
+    /**
+     * @param nanos time the getter waited for tokens of its TokenBucket
+     */
+    void waited(long nanos) {
+        metrics.waited(nanos);
+    }
+
+    /**
+     * A range or a request failed and is tried again
+     */
+    void retried() {
+        metrics.retried();
+    }
+
+    /**
+     * The getter has ended, it is no longer sampled
+     */
+    void ended() {
+        metrics.workerEnded(this);
+    }
+
+    /**
+     * @return the bytes received since the previous call
+     */
+    long sample() {
+        long bytes = bytesReceived.get();
+        long delta = bytes - sampledBytes;
+        sampledBytes = bytes;
+        return delta;
+    }
+}
@@ -0,0 +1,55 @@
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The ways the FileWriter can put chunks into the downloaded file.
+ *
+ * - RANDOM_ACCESS_FILE: seek + write on a RandomAccessFile (the original write path)
+ * - FILE_CHANNEL: positional FileChannel writes straight from the chunk's buffer
+ * - MEMORY_MAPPED: copies the chunk into memory-mapped regions of the file
+ */
+enum WriteMode {
+
+    RANDOM_ACCESS_FILE("raf"),
+
+    FILE_CHANNEL("channel"),
+
+    MEMORY_MAPPED("mmap");
+
+    private final String name;
+
+    WriteMode(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Opens the given file for writing chunks in this mode.
+     *
+     * @param file the file to write to
+     * @param fileSize the final size of the file
+     */
+    PositionalFile open(File file, long fileSize) throws IOException {
+        switch (this) {
+            case FILE_CHANNEL:
+                return new ChannelPositionalFile(file);
+            case MEMORY_MAPPED:
+                return new MappedPositionalFile(file, fileSize);
+            default:
+                return new RandomAccessPositionalFile(file);
+        }
+    }
+
+    static WriteMode fromName(String name) {
+        for (WriteMode mode : values()) {
+            if (mode.name.equalsIgnoreCase(name)) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown write mode: " + name);
+    }
+
+    @Override
+    public String toString() {
+        return this.name;
+    }
+}
@@ -0,0 +1,260 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Randomized test of the RangeTree against a simple model: a boolean per byte which tells whether it is missing, and
+ * the claim which owns it. Random sequences of claims, steals, advances, releases, finishes and removes run on both,
+ * and after every operation the tree must describe the same missing bytes as the model.
+ *
+ * javac -d out src/*.java && javac -cp out -d out test/RangeTreeTest.java
+ * java -cp out RangeTreeTest [SEQUENCES] [SEED]
+ */
+public class RangeTreeTest {
+
+    private static final int UNCLAIMED = 0;
+
+    private static final int DOWNLOADED = -1;
+
+    private final Random random;
+
+    private final int n;
+
+    private final RangeTree tree = new RangeTree();
+
+    private final boolean[] missing;
+
+    private final int[] owner; // UNCLAIMED, DOWNLOADED, or 1 + the index of the claim in claims
+
+    private final List<Range> claims = new ArrayList<>();
+
+    private final List<Range> live = new ArrayList<>(); // claims which were neither released nor finished
+
+    private final PartBuffer parts = new PartBuffer(); // reused by every intersect, as a FileWriter does
+
+    private String last = "";
+
+    RangeTreeTest(Random random) {
+        this.random = random;
+        this.n = 1 + random.nextInt(300);
+        this.missing = new boolean[n];
+        this.owner = new int[n];
+    }
+
+    public static void main(String[] args) {
+        int sequences = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+        Random random = new Random(seed);
+        for (int i = 0; i < sequences; i++) {
+            try {
+                new RangeTreeTest(random).run();
+            } catch (AssertionError e) {
+                System.out.println("FAILED in sequence " + i + " with seed " + seed + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        System.out.println("OK " + sequences + " sequences, seed " + seed);
+    }
+
+    private void run() {
+        // the missing intervals of a file, with gaps between some of them
+        int position = 0;
+        while (position < n) {
+            int end = Math.min(n - 1, position + random.nextInt(20));
+            if (random.nextInt(4) > 0) {
+                tree.add(position, end);
+                for (int i = position; i <= end; i++) {
+                    missing[i] = true;
+                }
+            }
+            position = end + 1;
+        }
+        check();
+
+        for (int op = 0; op < 200; op++) {
+            switch (random.nextInt(6)) {
+                case 0: claim(); break;
+                case 1: steal(); break;
+                case 2: advance(); break;
+                case 3: release(); break;
+                case 4: finish(); break;
+                default: remove(); break;
+            }
+            check();
+        }
+
+        // everything which is still claimable is claimed once
+        for (Range range : new ArrayList<>(live)) {
+            tree.release(range);
+            give(range, true);
+        }
+        int unclaimed = 0;
+        for (int i = 0; i < n; i++) {
+            if (missing[i] && owner[i] == UNCLAIMED) unclaimed++;
+        }
+        Range range;
+        long claimed = 0;
+        while ((range = tree.claim(Long.MAX_VALUE, Long.MAX_VALUE)) != null) {
+            claimed += range.getLength();
+        }
+        expect(claimed == unclaimed, "claimed " + claimed + " bytes at the end, " + unclaimed + " were unclaimed");
+    }
+
+    private void claim() {
+        long maxLength = 1 + random.nextInt(30);
+        long limit = random.nextBoolean() ? Long.MAX_VALUE : random.nextInt(n + 1);
+        last = "claim " + maxLength + " before " + limit;
+
+        int first = firstUnclaimed();
+        Range range = tree.claim(maxLength, limit);
+        if (first == -1 || first >= limit) {
+            expect(range == null, "claimed " + range + " while nothing was claimable");
+            return;
+        }
+        expect(range != null, "claimed nothing while byte " + first + " was claimable");
+        expect(range.getStart() == first, "claimed " + range + " instead of the first claimable byte " + first);
+        expect(range.getEnd() < Math.min(first + maxLength, limit), "claimed " + range + " too long");
+        for (long i = range.getStart(); i <= range.getEnd(); i++) {
+            expect(missing[(int) i] && owner[(int) i] == UNCLAIMED, "claimed " + range + " with byte " + i);
+        }
+        take(range, range.getStart(), range.getEnd(), UNCLAIMED);
+    }
+
+    private void steal() {
+        long minLength = 1 + random.nextInt(4);
+        last = "steal " + minLength;
+
+        Range thief = tree.steal(minLength);
+        if (thief == null) return;
+
+        int victim = owner[(int) thief.getStart()];
+        expect(victim > 0, "stole " + thief + " from an unclaimed byte");
+        Range victimRange = claims.get(victim - 1);
+        expect(victimRange.getEnd() == thief.getStart() - 1, "the victim " + victimRange + " still overlaps " + thief);
+        expect(thief.getLength() >= minLength, "stole " + thief + " shorter than " + minLength);
+        take(thief, thief.getStart(), thief.getEnd(), victim);
+    }
+
+    private void advance() {
+        if (live.isEmpty()) return;
+        Range range = live.get(random.nextInt(live.size()));
+        last = "advance " + range;
+        range.advance(1 + random.nextInt(10));
+    }
+
+    private void release() {
+        if (live.isEmpty()) return;
+        Range range = live.get(random.nextInt(live.size()));
+        last = "release " + range;
+        tree.release(range);
+        give(range, true);
+    }
+
+    private void finish() {
+        if (live.isEmpty()) return;
+        Range range = live.get(random.nextInt(live.size()));
+        last = "finish " + range;
+        tree.finish(range);
+        give(range, false);
+    }
+
+    private void remove() {
+        int start = random.nextInt(n);
+        int end = Math.min(n - 1, start + random.nextInt(12));
+        last = "remove " + start + "-" + end;
+
+        long expected = 0;
+        for (int i = start; i <= end; i++) {
+            if (missing[i]) expected++;
+            missing[i] = false;
+            owner[i] = UNCLAIMED;
+        }
+        long removed = tree.remove(start, end);
+        expect(removed == expected, "removed " + removed + " bytes instead of " + expected);
+    }
+
+    /**
+     * Gives the missing bytes from start to end which the previous owner has to a new claim
+     */
+    private void take(Range range, long start, long end, int previous) {
+        claims.add(range);
+        live.add(range);
+        for (long i = start; i <= end; i++) {
+            if (missing[(int) i] && owner[(int) i] == previous) {
+                owner[(int) i] = claims.size();
+            }
+        }
+    }
+
+    /**
+     * Takes the bytes of a claim back: those before its position are downloaded if it is released, all of them if it
+     * is finished, the others are unclaimed again
+     */
+    private void give(Range range, boolean released) {
+        live.remove(range);
+        int claim = claims.indexOf(range) + 1;
+        for (int i = 0; i < n; i++) {
+            if (owner[i] == claim) {
+                owner[i] = released && i >= range.getPosition() ? UNCLAIMED : DOWNLOADED;
+            }
+        }
+    }
+
+    private int firstUnclaimed() {
+        for (int i = 0; i < n; i++) {
+            if (missing[i] && owner[i] == UNCLAIMED) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Compares the intervals, the counters and the queries of the tree with the model
+     */
+    private void check() {
+        long[] intervals = tree.toArray();
+        boolean[] inTree = new boolean[n];
+        long remaining = 0;
+        long previousEnd = -1;
+        for (int i = 0; i < intervals.length; i += 2) {
+            expect(intervals[i] > previousEnd && intervals[i] <= intervals[i + 1], "intervals out of order");
+            previousEnd = intervals[i + 1];
+            for (long j = intervals[i]; j <= intervals[i + 1]; j++) {
+                inTree[(int) j] = true;
+                remaining++;
+            }
+        }
+        int firstMissing = -1;
+        for (int i = 0; i < n; i++) {
+            expect(inTree[i] == missing[i], "byte " + i + " is " + (missing[i] ? "missing" : "downloaded")
+                    + " but not in the tree");
+            if (missing[i] && firstMissing == -1) firstMissing = i;
+        }
+        expect(remaining == tree.getRemaining(), "remaining " + tree.getRemaining() + " instead of " + remaining);
+        expect(intervals.length / 2 == tree.size(), "size " + tree.size() + " instead of " + intervals.length / 2);
+        expect(tree.isEmpty() == (remaining == 0), "isEmpty " + tree.isEmpty() + " with " + remaining + " bytes");
+        expect(tree.first() == firstMissing, "first " + tree.first() + " instead of " + firstMissing);
+        expect(tree.hasUnclaimed() == (firstUnclaimed() != -1), "hasUnclaimed " + tree.hasUnclaimed());
+
+        int start = random.nextInt(n);
+        int end = Math.min(n - 1, start + random.nextInt(40));
+        parts.clear();
+        tree.intersect(start, end, parts);
+        boolean[] inParts = new boolean[n];
+        for (int i = 0; i < parts.size(); i++) {
+            expect(parts.start(i) >= start && parts.end(i) <= end, "intersect " + start + "-" + end + " returned "
+                    + parts.start(i) + "-" + parts.end(i));
+            for (long j = parts.start(i); j <= parts.end(i); j++) {
+                inParts[(int) j] = true;
+            }
+        }
+        for (int i = start; i <= end; i++) {
+            expect(inParts[i] == missing[i], "intersect " + start + "-" + end + " disagrees at byte " + i);
+        }
+    }
+
+    private void expect(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message + " after " + last);
+        }
+    }
+}